@@ -4,20 +4,18 @@
  */
 package com.softwareco.eclipse.plugin;
 
-import java.io.IOException;
 import java.net.URI;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResourceChangeEvent;
 import org.eclipse.core.resources.IWorkspace;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.ILog;
-import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.jface.text.DocumentEvent;
@@ -35,9 +33,7 @@ import org.eclipse.ui.texteditor.ITextEditor;
 import org.osgi.framework.BundleContext;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import com.google.gson.JsonPrimitive;
 import com.softwareco.eclipse.plugin.SoftwareCoKeystrokeManager.KeystrokeCountWrapper;
 
 /**
@@ -54,27 +50,32 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 	
 	public static JsonParser jsonParser = new JsonParser();
 	
-	public static Gson gson;
+	public static Gson gson = new Gson();
 
 	// Listeners (used to listen to file
 	// events such as opened, activated, input changed, etc
 	private static SoftwareCoFileEditorListener editorListener;
 	
 	// managers used by the static processing method
-	private static SoftwareCoKeystrokeManager keystrokeMgr;
+	private static SoftwareCoKeystrokeManager keystrokeMgr = SoftwareCoKeystrokeManager.getInstance();
 	private static SoftwareCoHttpClientManager clientMgr;
+	private static SoftwareCoTrackSampler trackSampler = SoftwareCoTrackSampler.getInstance();
+	private static SoftwareCoEventAggregator eventAggregator = SoftwareCoEventAggregator.getInstance();
+	private static SoftwareCoFlushScheduler flushScheduler = SoftwareCoFlushScheduler.getInstance();
 	
 	private SoftwareCoSessionManager sessionMgr = SoftwareCoSessionManager.getInstance();
 	
-	// private keystroke processor timer and client manager
-	private Timer timer;
+	// kpm session info timer
 	private Timer kpmFetchTimer;
+	
+	// how long stop may take to store the keystroke data and stop the threads
+	private final static long SHUTDOWN_DEADLINE_MILLIS = Long.getLong("software.shutdownDeadlineMillis", 3000);
 
 	/**
 	 * The constructor
 	 */
 	public SoftwareCo() {
-		gson = new Gson();
+		//
 	}
 
 	/*
@@ -87,10 +88,17 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 		logInstance = getLog();
 
 		super.start( context );
-		keystrokeMgr = SoftwareCoKeystrokeManager.getInstance();
 		clientMgr = SoftwareCoHttpClientManager.getInstance();
+		
+		// restarts the threads if the plugin was stopped before in this session
+		SoftwareCoExecutors.start();
+		clientMgr.start();
 
 		editorListener = new SoftwareCoFileEditorListener();
+		
+		// keep the file to project index current
+		ResourcesPlugin.getWorkspace().addResourceChangeListener(
+				SoftwareCoProjectResolver.getInstance(), IResourceChangeEvent.POST_CHANGE);
 	}
 
 	/**
@@ -126,12 +134,17 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 				//
 				window.getPartService().addPartListener( editorListener );
 				
+				// aggregate document changes published from the UI thread in the background
+				eventAggregator.start(Thread.currentThread());
+				
+				// sample the current music track in the background
+				trackSampler.start();
+				
 				//
-				// We've add the editor listener, start the processor
+				// We've add the editor listener, start the processor. Flushes are
+				// armed by keystroke activity.
 				//
-				timer = new Timer();
-				// run every minute
-		        timer.scheduleAtFixedRate(new ProcessKeystrokesTask(), 60 * 1000, 60 * 1000);
+				flushScheduler.start();
 
 				IEditorInput input = getWorkbenchIEditorInput();
 				if ( input == null ) {
@@ -156,7 +169,7 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 					//
 					if ( input instanceof IEditorInput ) {
 						IDocument document = ( ( (ITextEditor) editor ).getDocumentProvider() ).getDocument( input );
-						editorListener.addDocumentListener( document );
+						editorListener.addDocumentListener( document, getCurrentFileName() );
 					}
 				}
 				
@@ -166,15 +179,7 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 				SoftwareCoSessionManager.getInstance().chekUserAuthenticationStatus();
 				
 				// run the initial calls in 15 seconds
-				new Thread(() -> {
-			        try {
-			            Thread.sleep(1000 * 15);
-			            sessionMgr.sendOfflineData();
-			        }
-			        catch (Exception e){
-			            System.err.println(e);
-			        }
-			    }).start();
+				SoftwareCoExecutors.schedule(() -> sessionMgr.sendOfflineData(), 15, TimeUnit.SECONDS);
 				
 				// run the kpm fetch task every minute
 				kpmFetchTimer = new Timer();
@@ -190,8 +195,42 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 	 * org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop( BundleContext context ) throws Exception {
-		keystrokeMgr = null;
+		long deadline = System.currentTimeMillis() + SHUTDOWN_DEADLINE_MILLIS;
+		
+		//
+		// Kill the timers, no more flushes, what's left is stored offline below
+		//
+		flushScheduler.stop();
+		
+		if (kpmFetchTimer != null) {
+			kpmFetchTimer.cancel();
+			kpmFetchTimer = null;
+		}
+		
+		trackSampler.stop();
+		
+		// apply the document changes that are still in the ring
+		eventAggregator.stop(deadline - System.currentTimeMillis());
+		
+		//
+		// Store the live payloads offline, they're sent on the next start.
+		// Nothing on the exit path goes to the network.
+		//
+		try {
+			clientMgr.storeKeystrokeDataOffline(keystrokeMgr.processKeystrokeCountForTermination());
+		} catch (Exception e) {
+			SoftwareCoLogger.error("Software.com: Unable to store the keystroke data at shutdown.", e);
+		}
+		
+		// queued uploads are stored offline, a running upload gets until the deadline
+		clientMgr.shutdown(deadline);
+		sessionMgr.closeOfflineData();
+		SoftwareCoSessionManager.flushSession();
+		SoftwareCoExecutors.shutdown(deadline);
+		
 		super.stop(context);
+		
+		ResourcesPlugin.getWorkspace().removeResourceChangeListener(SoftwareCoProjectResolver.getInstance());
 
 		IWorkbenchWindow window = PlatformUI.getWorkbench().getActiveWorkbenchWindow();
 		if ( window != null && window.getPartService() != null ) {
@@ -200,19 +239,6 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 			//
 			window.getPartService().removePartListener( editorListener );
 		}
-		
-		//
-		// Kill the timers
-		//
-		if ( timer != null ) {
-			timer.cancel();
-			timer = null;
-		}
-		
-		if (kpmFetchTimer != null) {
-			kpmFetchTimer.cancel();
-			kpmFetchTimer = null;
-		}
 	}
 	
 	public static String getUserHomeDir() {
@@ -227,21 +253,22 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 		return (SWT.getPlatform().equals("carbon") || SWT.getPlatform().equals("cocoa"));
 	}
 	
-	public static void handleFileOpenedEvent() {
-		String fileName = getCurrentFileName();
+	public static void handleFileOpenedEvent(String fileName) {
 		String projectName = SoftwareCo.getActiveProjectName(fileName);
 		if (fileName == null) {
 			return;
 		}
 		
-		initializeKeystrokeObjectGraph(projectName, fileName);
+		initializeKeystrokeObjectGraph(projectName, getProjectDirectory(fileName));
 		
 		SoftwareCoKeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
-		JsonObject fileInfo = keystrokeCount.getFileInfo(fileName);
-		
-		updateFileInfoValue(fileInfo, "open", 1);
+		while (!keystrokeCount.recordOpen(fileName)) {
+			// swapped out by a flush, record into the new live payload
+			keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
+		}
+		flushScheduler.onActivity(keystrokeCount);
 		
-		SoftwareCoLogger.info("Software.com: file opened: " + fileName);
+		SoftwareCoLogger.debug(() -> "Software.com: file opened: " + fileName);
 	}
 	
 	public static void handleFileClosedEvent(String fileName) {
@@ -250,186 +277,106 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 			return;
 		}
 		
-		initializeKeystrokeObjectGraph(projectName, fileName);
+		initializeKeystrokeObjectGraph(projectName, getProjectDirectory(fileName));
 		
 		SoftwareCoKeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
-		JsonObject fileInfo = keystrokeCount.getFileInfo(fileName);
-		
-		updateFileInfoValue(fileInfo, "close", 1);
+		while (!keystrokeCount.recordClose(fileName)) {
+			// swapped out by a flush, record into the new live payload
+			keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
+		}
+		flushScheduler.onActivity(keystrokeCount);
 		
-		SoftwareCoLogger.info("Software.com: file closed: " + fileName);
+		SoftwareCoLogger.debug(() -> "Software.com: file closed: " + fileName);
 	}
 	
-	protected static int getLineCount(String fileName) {
-        Path path = Paths.get(fileName);
-        try {
-            return (int) Files.lines(path).count();
-        } catch (IOException e) {
-        		SoftwareCoLogger.info("Software.com: failed to get the line count for file " + fileName);
-            return 0;
-        }
-    }
-
 	/**
-	 * Take the changed document metadata and process them.
+	 * Take the changed document metadata and process them. This runs on the
+	 * UI thread for every document change, so the event is classified with
+	 * plain char checks and handed to the aggregator as a primitive record,
+	 * the payload is updated on the aggregator thread. The file and project
+	 * come from the listener's binding instead of the active editor, which
+	 * also attributes edits to documents that aren't in the active editor.
+	 * @param binding the document listener bound to the changed file
 	 * @param docEvent
+	 * @param removedLines number of line breaks in the replaced region, captured
+	 * before the change was applied
 	 */
-	public static void handleChangeEvents(DocumentEvent docEvent) {
+	public static void handleChangeEvents(SoftwareCoDocumentListener binding, DocumentEvent docEvent, int removedLines) {
+		if (binding.getFileName() == null) {
+			// the document isn't bound to a file
+			return;
+		}
+		
+		String text = docEvent.getText();
+		int textLength = ( text != null ) ? text.length() : 0;
 		
 		//
 		// The docEvent.getLength() will return a positive number
 		// for character deletion, single or bulk deletion
 		//
-		int numKeystrokes = docEvent.getLength();
+		int deleteLength = docEvent.getLength();
 		
-		boolean isNewLine = false;
-		if (docEvent.getText().matches("\n.*") || docEvent.getText().matches("\r\n.*")) {
-			isNewLine = true;
-		}
-		
-		String fileName = getCurrentFileName();
-		String projectName = SoftwareCo.getActiveProjectName(fileName);
-		
-		initializeKeystrokeObjectGraph(projectName, fileName);
+		boolean isNewLine = startsWithNewLine(text, textLength);
 		
-		SoftwareCoKeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
-		JsonObject fileInfo = keystrokeCount.getFileInfo(fileName);
-		
-		String currentTrack = SoftwareCoUtils.getCurrentMusicTrack();
-        String trackInfo = fileInfo.get("trackInfo").getAsString();
-        if ((trackInfo == null || trackInfo.equals("")) && (currentTrack != null && !currentTrack.equals(""))) {
-            updateFileInfoStringValue(fileInfo, "trackInfo", currentTrack);
-        }
-
+		int adds = 0;
+		int pastes = 0;
+		int deletes = 0;
 		if (!isNewLine) {
-			//
-			// get keystroke count from docEvent if getLength() return zero
-			//
-			if ( numKeystrokes == 0 ) {
-				//
-				// This means we had a copy and paste or it was normal kpm addition
-				// Count the number of characters in the text attribute
-				//
-				numKeystrokes = ( docEvent.getText() != null ) ? docEvent.getText().length() : 0;
-			} else {
-				// make it negative since it's character deletion
-				numKeystrokes = numKeystrokes / -1;
+			if (deleteLength > 0) {
+				// It's a character delete event (single or bulk)
+				deletes = deleteLength;
+			} else if (textLength > 1) {
+				// It's a copy and paste event
+				pastes = textLength;
+			} else if (textLength == 1) {
+				// increment the specific file keystroke value
+				adds = 1;
 			}
-	        
-	        if (numKeystrokes > 1) {
-	        	// It's a copy and paste event
-		        updateFileInfoValue(fileInfo, "paste", numKeystrokes);
-		        SoftwareCoLogger.info("Software.com: Copy+Paste incremented");
-	        } else if (numKeystrokes < 0) {
-	        	int deleteKpm = Math.abs(numKeystrokes);
-	        	// It's a character delete event
-		        updateFileInfoValue(fileInfo, "delete", deleteKpm);
-		        SoftwareCoLogger.info("Software.com: Delete incremented");
-	        } else if (numKeystrokes == 1) {
-	        	// increment the specific file keystroke value
-		        updateFileInfoValue(fileInfo, "add", 1);
-				SoftwareCoLogger.info("Software.com: KPM incremented");
-	        }
 		}
+		int keystrokes = (isNewLine || deleteLength > 0 || textLength > 0) ? 1 : 0;
 		
-		if (isNewLine || numKeystrokes != 0) {
-			// increment the data count
-			int incrementedCount = Integer.parseInt(keystrokeCount.getData()) + 1;
-			keystrokeCount.setData( String.valueOf(incrementedCount) );
-		}
-        
-        int filelen = (docEvent.getDocument() != null) ? docEvent.getDocument().getLength() : -1;
-        if (filelen != -1) {
-        	updateFileInfoValue(fileInfo, "length", filelen);
-        }
-        
-        int lines = getPreviousLineCount(fileInfo);
-        if (lines == -1) {
-        	lines = getLineCount(fileName);
-        	if (lines == -1) {
-        		lines = 0;
-        	}
-        }
-        
-        if (isNewLine) {
-        	lines += 1;
-        	// new lines added
-            updateFileInfoValue(fileInfo, "linesAdded", 1);
-            SoftwareCoLogger.info("Software.com: lines added incremented");
-        }
-
-        updateFileInfoValue(fileInfo, "lines", lines);
+		IDocument document = docEvent.getDocument();
+		int filelen = (document != null) ? document.getLength() : -1;
+		int lines = (document != null) ? document.getNumberOfLines() : -1;
+		
+		eventAggregator.publish(binding, adds, pastes, deletes, keystrokes,
+				countLineBreaks(text, textLength), removedLines, filelen, lines);
 	}
 	
-	private static int getPreviousLineCount(JsonObject fileInfo) {
-        JsonPrimitive keysVal = fileInfo.getAsJsonPrimitive("lines");
-        return keysVal.getAsInt();
-    }
-	
-	private static void updateFileInfoStringValue(JsonObject fileInfo, String key, String value) {
-		fileInfo.addProperty(key, value);
+	/**
+	 * Returns true if the inserted text starts with a line break ("\n" or "\r\n").
+	 */
+	private static boolean startsWithNewLine(String text, int textLength) {
+		if (textLength == 0) {
+			return false;
+		}
+		char first = text.charAt(0);
+		return first == '\n' || (first == '\r' && textLength > 1 && text.charAt(1) == '\n');
 	}
 	
-	private static void updateFileInfoValue(JsonObject fileInfo, String key, int incrementVal) {
-		JsonPrimitive keysVal = fileInfo.getAsJsonPrimitive(key);
-		
-		if (key.equals("length") || key.equals("lines")) {
-			// it's not additive
-			fileInfo.addProperty(key, incrementVal);
-		} else {
-			// it's additive
-			int totalVal = keysVal.getAsInt() + incrementVal;
-			fileInfo.addProperty(key, totalVal);
+	/**
+	 * Count the line breaks in the inserted text, "\r\n" counts as one.
+	 */
+	protected static int countLineBreaks(String text, int textLength) {
+		int count = 0;
+		for (int i = 0; i < textLength; i++) {
+			char c = text.charAt(i);
+			if (c == '\n') {
+				count++;
+			} else if (c == '\r' && (i + 1 == textLength || text.charAt(i + 1) != '\n')) {
+				count++;
+			}
 		}
-        
-        if (key.equals("add") || key.equals("delete")) {
-        		// update the netkeys and the keys
-            	// "netkeys" = add - delete
-            	// "keys" = add + delete
-        		int addVal = fileInfo.get("add").getAsInt();
-        		int deleteVal = fileInfo.get("delete").getAsInt();
-        		fileInfo.addProperty("netkeys", (addVal - deleteVal));
-        		fileInfo.addProperty("keys", (addVal + deleteVal));
-        }
+		return count;
 	}
 	
-	public static void initializeKeystrokeObjectGraph(String projectName, String fileName) {
-		SoftwareCoKeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
-		if ( keystrokeCount == null ) {
-			//
-			// Create one since it hasn't been created yet
-			// and set the start time (in seconds)
-			//
-			keystrokeCount = new SoftwareCoKeystrokeCount();
-			
-			//
-			// Update the manager with the newly created KeystrokeCount object
-			//
-			keystrokeMgr.setKeystrokeCount(projectName, keystrokeCount);
-		}
-		
+	public static void initializeKeystrokeObjectGraph(String projectName, String projectDirectory) {
 		//
 		// Make sure we have the project name and directory info
-		updateKeystrokeProject(fileName, keystrokeCount);
-	}
-	
-	private static void updateKeystrokeProject(String fileName, SoftwareCoKeystrokeCount keystrokeCount) {
-		if (keystrokeCount == null) {
-			return;
-		}
-		SoftwareCoProject project = keystrokeCount.getProject();
-		String projectName = SoftwareCo.getActiveProjectName(fileName);
-		IProject iproj = getFileProject(fileName);
-		String projectDirectory = (iproj != null)? iproj.getLocation().toString() : "";
-		
-		if (project == null) {
-			project = new SoftwareCoProject( projectName, projectDirectory );
-			keystrokeCount.setProject( project );
-		} else if (project.getName() == null || project.getName().equals("")) {
-			project.setDirectory(projectDirectory);
-			project.setName(projectName);
-		} else if ((project.getDirectory() == null || project.getDirectory().equals("")) && !projectDirectory.equals("")) {
-			project.setDirectory(projectDirectory);
+		//
+		SoftwareCoKeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
+		while (!keystrokeCount.updateProject(projectName, projectDirectory)) {
+			keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
 		}
 	}
 
@@ -444,43 +391,52 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 		return imageDescriptorFromPlugin( PLUGIN_ID, path );
 	}
 	
+	/**
+	 * Flush every payload that has keystroke activity
+	 */
 	protected static void processKeystrokes() {
+		processKeystrokes(true);
+	}
+	
+	/**
+	 * Flush the payloads with keystroke activity whose one minute window has
+	 * ended, or all of them if flushAll is set.
+	 */
+	protected static void processKeystrokes(boolean flushAll) {
+		
+		List<SoftwareCoKeystrokeCount> keystrokeCounts = new ArrayList<SoftwareCoKeystrokeCount>();
+		long nowSeconds = Math.round(System.currentTimeMillis() / 1000);
 		
 		List<KeystrokeCountWrapper> wrapperList = keystrokeMgr.getKeystrokeCountWrapperList();
 		for (KeystrokeCountWrapper wrapper : wrapperList) {
-			SoftwareCoKeystrokeCount keystrokeCount = wrapper.getKeystrokeCount();
+			SoftwareCoKeystrokeCount liveCount = wrapper.getKeystrokeCount();
 			//
-			// Only send an update if the keystroke count object is not null and we have keystroke activity
+			// Only send an update if we have keystroke activity
 			//
-			if ( keystrokeCount != null && keystrokeCount.hasData() ) {
+			if ( liveCount.hasData() &&
+					(flushAll || nowSeconds >= liveCount.getStart() + SoftwareCoFlushScheduler.WINDOW_SECONDS) ) {
 
-				keystrokeCount.setEnd( keystrokeCount.getStart() + 60 );
-				
 				//
-				// Send the info now
+				// Swap in an empty payload, keystrokes keep landing in the new one
+				// while this one is sent
 				//
-				clientMgr.sendKeystrokeData(keystrokeCount);
+				SoftwareCoKeystrokeCount keystrokeCount = wrapper.swapKeystrokeCount();
+				keystrokeCount.complete( keystrokeCount.getStart() + SoftwareCoFlushScheduler.WINDOW_SECONDS );
 				
-				SoftwareCoUtils.reDisplayStatusMessage();
+				keystrokeCounts.add(keystrokeCount);
 			}
 		}
+		
+		if (!keystrokeCounts.isEmpty()) {
+			//
+			// Send the info now, every project's payload goes out in the same upload
+			//
+			clientMgr.sendKeystrokeData(keystrokeCounts);
+			
+			SoftwareCoUtils.reDisplayStatusMessage();
+		}
 	}
 	
-	/**
-	 * 
-	 * Inner class to handle the 1-minute timer to process any keystrokes that
-	 * need to get sent to the plugin manager.
-	 *
-	 */
-	private class ProcessKeystrokesTask extends TimerTask {
-        public void run() {
-	        	//
-	    		// This will check if we should process the keystrokes (send the data to the server)
-	    		//
-	    		processKeystrokes();
-        }
-    }
-	
 	private class ProcessKpmSessionInfoTask extends TimerTask {
 		public void run() {
 			sessionMgr.fetchDailyKpmSessionInfo();
@@ -499,7 +455,7 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 		try {
 			return window.getPartService().getActivePart().getSite().getPage().getActiveEditor().getEditorInput();
 		} catch (NullPointerException e) {
-			SoftwareCoLogger.info("Software.com: Unable to retrieve the IEditorInput from workbench window. " + e.getMessage());
+			SoftwareCoLogger.debug("Software.com: Unable to retrieve the IEditorInput from workbench window. " + e.getMessage());
 			return null;
 		}
 	}
@@ -512,19 +468,16 @@ public class SoftwareCo extends AbstractUIPlugin implements IStartup {
 		return "None";
 	}
 	
-	private static IProject getFileProject(String fileName) {
-		if (fileName == null) {
-			return null;
-		}
-		IProject[] projects = ResourcesPlugin.getWorkspace().getRoot().getProjects();
-		for (IProject project : projects) {
-			IPath locationPath = project.getLocation();
-			String pathStr = locationPath.toString();
-			if (pathStr != null && fileName.indexOf(pathStr) != -1) {
-				return project;
-			}
+	public static String getProjectDirectory(String fileName) {
+		IProject project = getFileProject(fileName);
+		if (project != null && project.getLocation() != null) {
+			return project.getLocation().toString();
 		}
-		return null;
+		return "";
+	}
+	
+	private static IProject getFileProject(String fileName) {
+		return SoftwareCoProjectResolver.getInstance().resolve(fileName);
 	}
 	
 	private static String getCurrentFileName() {
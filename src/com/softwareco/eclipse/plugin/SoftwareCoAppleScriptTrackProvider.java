@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonObject;
+
+/**
+ * 
+ * Track provider for iTunes and Spotify on the Mac, using osascript.
+ *
+ */
+public class SoftwareCoAppleScriptTrackProvider implements SoftwareCoTrackProvider {
+	
+	private final static int EOF = -1;
+	// osascript can hang when a player doesn't answer, don't hold the sampler thread for longer
+	private final static long SCRIPT_TIMEOUT_MILLIS = Long.getLong("software.trackScriptTimeoutMillis", 5000);
+	
+	@Override
+	public boolean isAvailable() {
+		return SoftwareCo.isMac();
+	}
+	
+	@Override
+	public String getCurrentTrack() throws IOException {
+        String script =
+                "on buildItunesRecord(appState)\n" +
+                    "tell application \"iTunes\"\n" +
+                        "set track_artist to artist of current track\n" +
+                        "set track_name to name of current track\n" +
+                        "set track_genre to genre of current track\n" +
+                        "set track_id to database ID of current track\n" +
+                        "set json to \"genre='\" & track_genre & \"';artist='\" & track_artist & \"';id='\" & track_id & \"';name='\" & track_name & \"';state='playing'\"\n" +
+                    "end tell\n" +
+                    "return json\n" +
+                "end buildItunesRecord\n" +
+                "on buildSpotifyRecord(appState)\n\n" +
+                    "tell application \"Spotify\"\n" +
+                        "set track_artist to artist of current track\n" +
+                        "set track_name to name of current track\n" +
+                        "set track_duration to duration of current track\n" +
+                        "set track_id to id of current track\n" +
+                        "set json to \"genre='';artist='\" & track_artist & \"';id='\" & track_id & \"';name='\" & track_name & \"';state='playing'\"\n" +
+                    "end tell\n" +
+                    "return json\n" +
+                "end buildSpotifyRecord\n\n" +
+                "try\n" +
+                    "if application \"Spotify\" is running and application \"iTunes\" is not running then\n" +
+                        "tell application \"Spotify\" to set spotifyState to (player state as text)\n" +
+                        "-- spotify is running and itunes is not\n" +
+                        "if (spotifyState is \"paused\" or spotifyState is \"playing\") then\n" +
+                            "set jsonRecord to buildSpotifyRecord(spotifyState)\n" +
+                        "else\n" +
+                            "set jsonRecord to {}\n" +
+                        "end if\n" +
+                    "else if application \"Spotify\" is running and application \"iTunes\" is running then\n" +
+                        "tell application \"Spotify\" to set spotifyState to (player state as text)\n" +
+                        "tell application \"iTunes\" to set itunesState to (player state as text)\n" +
+                        "-- both are running but use spotify as a higher priority\n" +
+                        "if spotifyState is \"playing\" then\n" +
+                            "set jsonRecord to buildSpotifyRecord(spotifyState)\n" +
+                        "else if itunesState is \"playing\" then\n" +
+                            "set jsonRecord to buildItunesRecord(itunesState)\n" +
+                        "else if spotifyState is \"paused\" then\n" +
+                            "set jsonRecord to buildSpotifyRecord(spotifyState)\n" +
+                        "else\n" +
+                            "set jsonRecord to {}\n" +
+                        "end if\n" +
+                    "else if application \"iTunes\" is running and application \"Spotify\" is not running then\n" +
+                        "tell application \"iTunes\" to set itunesState to (player state as text)\n" +
+                        "set jsonRecord to buildItunesRecord(itunesState)\n" +
+                    "else\n" +
+                        "set jsonRecord to {}\n" +
+                    "end if\n" +
+                    "return jsonRecord\n" +
+                "on error\n" +
+                    "return {}\n" +
+                "end try";
+
+        String trackInfoStr = eval(script);
+        if (trackInfoStr == null) {
+            return null;
+        }
+        // genre:Alternative, artist:AWOLNATION, id:6761, name:Kill Your Heroes, state:playing
+        JsonObject jsonObj = new JsonObject();
+        if (trackInfoStr != null && !trackInfoStr.equals("")) {
+            // trim and replace things
+            trackInfoStr = trackInfoStr.trim();
+            trackInfoStr = trackInfoStr.replace("\"", "");
+            trackInfoStr = trackInfoStr.replace("'", "");
+            String[] paramParts = trackInfoStr.split(";");
+            for (String paramPart : paramParts) {
+                paramPart = paramPart.trim();
+                String[] params = paramPart.split("=");
+                if (params != null && params.length == 2) {
+                    jsonObj.addProperty(params[0], params[1]);
+                }
+            }
+        }
+        return SoftwareCo.gson.toJson(jsonObj);
+    }
+
+    /**
+     * Execute AppleScript using {@literal osascript}. An IOException means osascript
+     * can't be run on this platform.
+     *
+     * @param code the code to evaluate
+     * @return script result.
+     */
+    private static String eval(String code) throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        String[] args = { "osascript", "-e", code };
+
+        try {
+            Process process = runtime.exec(args);
+            if (!process.waitFor(SCRIPT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+                SoftwareCoLogger.debug("Software.com: osascript didn't answer within "
+                        + SCRIPT_TIMEOUT_MILLIS + "ms, skipping this track sample");
+                return null;
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+            InputStream is = process.getInputStream();
+            copyLarge(is, baos, new byte[4096]);
+            return baos.toString().trim();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static long copyLarge(InputStream input, OutputStream output, byte[] buffer) throws IOException {
+
+        long count = 0;
+        int n;
+        while (EOF != (n = input.read(buffer))) {
+            output.write(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+}
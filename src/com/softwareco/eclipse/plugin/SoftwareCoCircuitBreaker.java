@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+/**
+ *
+ * Circuit breaker for the api. After enough consecutive failures the breaker
+ * opens and requests are refused without touching the network. Once the open
+ * period has passed a single probe request is let through, if it succeeds the
+ * breaker closes again, otherwise it re-opens for twice as long (up to a cap).
+ *
+ */
+public class SoftwareCoCircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+	private final int failureThreshold;
+	private final long baseOpenMillis;
+	private final long maxOpenMillis;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openMillis;
+	private long openUntil = 0;
+	private boolean probeInFlight = false;
+	private long openCount = 0;
+	private long rejectedCount = 0;
+
+	public SoftwareCoCircuitBreaker(String name, int failureThreshold, long baseOpenMillis, long maxOpenMillis) {
+		this.name = name;
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.baseOpenMillis = baseOpenMillis;
+		this.maxOpenMillis = Math.max(baseOpenMillis, maxOpenMillis);
+		this.openMillis = baseOpenMillis;
+	}
+
+	/**
+	 * Returns true if a request may be sent now. When the open period has
+	 * passed the first caller becomes the half open probe, every caller
+	 * that's let through must report back with onSuccess or onFailure.
+	 */
+	public synchronized boolean tryAcquire() {
+		switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (System.currentTimeMillis() >= openUntil) {
+					transition(State.HALF_OPEN);
+					probeInFlight = true;
+					return true;
+				}
+				break;
+			case HALF_OPEN:
+				if (!probeInFlight) {
+					probeInFlight = true;
+					return true;
+				}
+				break;
+		}
+		rejectedCount++;
+		return false;
+	}
+
+	/**
+	 * Returns true if a request would currently be let through, without
+	 * claiming the half open probe
+	 */
+	public synchronized boolean isCallPermitted() {
+		switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				return System.currentTimeMillis() >= openUntil;
+			default:
+				return !probeInFlight;
+		}
+	}
+
+	public synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		probeInFlight = false;
+		if (state != State.CLOSED) {
+			openMillis = baseOpenMillis;
+			transition(State.CLOSED);
+		}
+	}
+
+	public synchronized void onFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN) {
+			// the probe failed, stay away for longer this time
+			probeInFlight = false;
+			openMillis = Math.min(openMillis * 2, maxOpenMillis);
+			open();
+		} else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+			open();
+		}
+	}
+
+	private void open() {
+		openUntil = System.currentTimeMillis() + openMillis;
+		openCount++;
+		transition(State.OPEN);
+	}
+
+	private void transition(State newState) {
+		if (state != newState) {
+			final State oldState = state;
+			state = newState;
+			SoftwareCoLogger.info("Software.com: " + name + " circuit breaker " + oldState + " -> " + newState
+					+ ((newState == State.OPEN) ? " for " + (openMillis / 1000) + "s" : ""));
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "[state: " + state + "; consecutive failures: " + consecutiveFailures
+				+ "; opened: " + openCount + "; rejected: " + rejectedCount + "]";
+	}
+}
@@ -4,7 +4,9 @@
  */
 package com.softwareco.eclipse.plugin;
 
+import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IDocumentListener;
 
 /**
@@ -12,18 +14,87 @@ import org.eclipse.jface.text.IDocumentListener;
  * Document listener to send character change events to the Activator class,
  * which then may possibly process the keystroke object if the 1 minute
  * threshold is met.
+ * 
+ * The listener is bound to the document's file and project when it's attached,
+ * so the change events don't have to look up the active editor.
  *
  */
 public class SoftwareCoDocumentListener implements IDocumentListener {
+	
+	private static final SoftwareCoProjectResolver projectResolver = SoftwareCoProjectResolver.getInstance();
+	
+	// written on the UI thread, read by the aggregator thread
+	private volatile String fileName;
+	private volatile String projectName;
+	private volatile String projectDirectory;
+	// project index generation the project was resolved with
+	private volatile int projectGeneration;
+	// line breaks in the region about to be replaced, captured before the change
+	private int removedLines = 0;
+	
+	public SoftwareCoDocumentListener(String fileName) {
+		this.bind(fileName);
+	}
+	
+	/**
+	 * Resolve the file's project name and directory. This is called when the
+	 * listener is attached and again when the editor input changes (e.g. the
+	 * file was renamed or moved).
+	 * @param fileName
+	 */
+	public synchronized void bind(String fileName) {
+		if (fileName == null || fileName.equals(this.fileName)) {
+			return;
+		}
+		this.fileName = fileName;
+		this.resolveProject();
+	}
+	
+	private synchronized void resolveProject() {
+		this.projectGeneration = projectResolver.getGeneration();
+		this.projectName = SoftwareCo.getActiveProjectName(fileName);
+		this.projectDirectory = SoftwareCo.getProjectDirectory(fileName);
+	}
+	
+	private void checkProject() {
+		// re-resolve if workspace projects were opened, closed, moved, etc
+		if (fileName != null && projectGeneration != projectResolver.getGeneration()) {
+			this.resolveProject();
+		}
+	}
 
 	@Override
 	public void documentAboutToBeChanged(DocumentEvent event) {
-		//
+		removedLines = 0;
+		IDocument document = event.getDocument();
+		if (document != null && event.getLength() > 0) {
+			try {
+				// the replaced region spans one more line than the line breaks it removes
+				removedLines = document.getNumberOfLines(event.getOffset(), event.getLength()) - 1;
+			} catch (BadLocationException e) {
+				// leave it at zero
+			}
+		}
 	}
 
 	@Override
 	public void documentChanged(DocumentEvent event) {
-		SoftwareCo.handleChangeEvents(event);
+		SoftwareCo.handleChangeEvents(this, event, removedLines);
+		removedLines = 0;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getProjectName() {
+		this.checkProject();
+		return projectName;
+	}
+
+	public String getProjectDirectory() {
+		this.checkProject();
+		return projectDirectory;
 	}
 
 }
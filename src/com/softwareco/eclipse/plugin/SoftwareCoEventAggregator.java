@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.softwareco.eclipse.plugin.SoftwareCoEventRingBuffer.OverflowPolicy;
+
+/**
+ * 
+ * Moves keystroke accounting off the UI thread. Document listeners publish
+ * classified change records into a ring buffer and a background thread drains
+ * them in batches into the per project keystroke payloads. With no editor
+ * activity the aggregator thread stays parked until the next record comes in.
+ * 
+ * The ring size and overflow policy can be set with the
+ * "software.eventRingCapacity" and "software.eventOverflowPolicy" (DROP or
+ * COALESCE) system properties.
+ *
+ */
+public class SoftwareCoEventAggregator implements SoftwareCoEventRingBuffer.EventHandler {
+	
+	private static final int DEFAULT_RING_CAPACITY = 4096;
+	private static final int DRAIN_BATCH_SIZE = 256;
+	
+	private static SoftwareCoEventAggregator instance = null;
+	
+	private final SoftwareCoEventRingBuffer ring;
+	private final SoftwareCoKeystrokeManager keystrokeMgr = SoftwareCoKeystrokeManager.getInstance();
+	private final SoftwareCoTrackSampler trackSampler = SoftwareCoTrackSampler.getInstance();
+	private final SoftwareCoFlushScheduler flushScheduler = SoftwareCoFlushScheduler.getInstance();
+	
+	// the only thread allowed to publish into the ring
+	private volatile Thread producerThread = null;
+	private volatile Thread aggregatorThread = null;
+	private volatile boolean running = false;
+	// set by the aggregator thread before it parks on an empty ring
+	private volatile boolean idle = false;
+	// held while draining, stop() takes over as the ring's consumer once it has it
+	private final ReentrantLock drainLock = new ReentrantLock();
+	
+	/**
+	 * Protected constructor to defeat instantiation
+	 */
+	protected SoftwareCoEventAggregator() {
+		int capacity = Integer.getInteger("software.eventRingCapacity", DEFAULT_RING_CAPACITY);
+		OverflowPolicy policy = OverflowPolicy.COALESCE;
+		String policyName = System.getProperty("software.eventOverflowPolicy");
+		if (policyName != null) {
+			try {
+				policy = OverflowPolicy.valueOf(policyName.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				SoftwareCoLogger.warn("Software.com: unknown event overflow policy " + policyName, e);
+			}
+		}
+		ring = new SoftwareCoEventRingBuffer(capacity, policy);
+	}
+	
+	public static synchronized SoftwareCoEventAggregator getInstance() {
+		if (instance == null) {
+			instance = new SoftwareCoEventAggregator();
+		}
+		return instance;
+	}
+	
+	/**
+	 * Start the aggregator thread.
+	 * @param producer the thread document changes are published from (the UI thread)
+	 */
+	public synchronized void start(Thread producer) {
+		if (running) {
+			return;
+		}
+		running = true;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				aggregate();
+			}
+		}, "Software.com keystroke aggregator");
+		thread.setDaemon(true);
+		aggregatorThread = thread;
+		thread.start();
+		producerThread = producer;
+	}
+	
+	/**
+	 * Stop publishing into the ring, stop the aggregator thread and apply what's
+	 * left in the ring on the calling thread.
+	 */
+	public void stop() {
+		stop(TimeUnit.SECONDS.toMillis(2));
+	}
+	
+	/**
+	 * Stop the aggregator, waiting at most timeoutMillis for its thread to exit
+	 */
+	public void stop(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + Math.max(1, timeoutMillis);
+		Thread thread;
+		synchronized (this) {
+			producerThread = null;
+			running = false;
+			thread = aggregatorThread;
+			aggregatorThread = null;
+		}
+		boolean locked = false;
+		try {
+			if (thread != null) {
+				LockSupport.unpark(thread);
+				thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			// the aggregator thread may still be finishing a batch, it won't start another
+			locked = drainLock.tryLock(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			locked = drainLock.tryLock();
+		}
+		if (!locked) {
+			SoftwareCoLogger.warn("Software.com: the keystroke aggregator didn't stop in time, "
+					+ ring.size() + " change event(s) were not recorded", null);
+			return;
+		}
+		try {
+			// we're the only consumer now
+			while (ring.drain(this, DRAIN_BATCH_SIZE) > 0) {
+				//
+			}
+		} finally {
+			drainLock.unlock();
+		}
+	}
+	
+	/**
+	 * Record a classified document change. On the producer thread this only writes
+	 * the record into the ring, changes from any other thread (or before the
+	 * aggregator is started) are applied right away.
+	 */
+	public void publish(SoftwareCoDocumentListener doc, int adds, int pastes, int deletes, int keystrokes,
+			int linesAdded, int linesRemoved, int docLength, int docLines) {
+		if (Thread.currentThread() == producerThread) {
+			ring.publish(doc, adds, pastes, deletes, keystrokes, linesAdded, linesRemoved, docLength, docLines,
+					System.currentTimeMillis());
+			if (idle) {
+				// the ring went from empty to non-empty
+				idle = false;
+				LockSupport.unpark(aggregatorThread);
+			}
+		} else {
+			this.onEvent(doc, adds, pastes, deletes, keystrokes, linesAdded, linesRemoved, docLength, docLines,
+					System.currentTimeMillis());
+		}
+	}
+	
+	private void aggregate() {
+		while (running) {
+			try {
+				int drained;
+				drainLock.lock();
+				try {
+					drained = running ? ring.drain(this, DRAIN_BATCH_SIZE) : 0;
+				} finally {
+					drainLock.unlock();
+				}
+				if (drained == 0) {
+					idle = true;
+					// the flag is written before the ring is checked and the producer writes the
+					// tail before it reads the flag, so one of us always sees the other
+					if (running && ring.isEmpty()) {
+						LockSupport.park(this);
+					}
+					idle = false;
+				}
+			} catch (Throwable e) {
+				SoftwareCoLogger.error("Software.com: Error aggregating keystroke events.", new Exception(e));
+			}
+		}
+	}
+	
+	/**
+	 * Apply a change record to the project's live keystroke payload.
+	 */
+	@Override
+	public void onEvent(SoftwareCoDocumentListener doc, int adds, int pastes, int deletes, int keystrokes,
+			int linesAdded, int linesRemoved, int docLength, int docLines, long timestamp) {
+		String fileName = doc.getFileName();
+		if (fileName == null) {
+			return;
+		}
+		String projectName = doc.getProjectName();
+		SoftwareCo.initializeKeystrokeObjectGraph(projectName, doc.getProjectDirectory());
+		
+		// cached by the background sampler
+		String currentTrack = trackSampler.getCurrentTrack();
+		
+		SoftwareCoKeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
+		while (!keystrokeCount.recordChange(fileName, adds, pastes, deletes, keystrokes, linesAdded, linesRemoved,
+				docLength, docLines, currentTrack)) {
+			// swapped out by a flush, record into the new live payload
+			keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
+		}
+		flushScheduler.onActivity(keystrokeCount);
+	}
+	
+	public SoftwareCoEventRingBuffer getRing() {
+		return ring;
+	}
+	
+	public String getRingStats() {
+		return "[size: " + ring.size() + "; capacity: " + ring.getCapacity() + "; high water: "
+				+ ring.getHighWaterMark() + "; coalesced: " + ring.getCoalescedCount() + "; dropped: "
+				+ ring.getDroppedCount() + "]";
+	}
+
+}
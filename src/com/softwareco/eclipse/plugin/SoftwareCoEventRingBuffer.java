@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 
+ * Preallocated single producer, single consumer ring of document change records.
+ * The producer (the UI thread) writes a record into the slot arrays and
+ * publishes it with a volatile store of the tail, the consumer (the aggregator
+ * thread) drains records in batches. Publishing never allocates or blocks.
+ * 
+ * A record carries the change already classified into summable deltas (adds,
+ * pastes, deletes, keystrokes, lines added/removed) so records for the same
+ * document can be merged when the ring is full and the COALESCE policy is used.
+ *
+ */
+public class SoftwareCoEventRingBuffer {
+	
+	public enum OverflowPolicy {
+		// drop the record and count it
+		DROP,
+		// merge records for the same document into one pending record until the ring has room
+		COALESCE
+	}
+	
+	public interface EventHandler {
+		void onEvent(SoftwareCoDocumentListener doc, int adds, int pastes, int deletes, int keystrokes,
+				int linesAdded, int linesRemoved, int docLength, int docLines, long timestamp);
+	}
+	
+	private final int capacity;
+	private final int mask;
+	
+	// record slots
+	private final SoftwareCoDocumentListener[] docs;
+	private final int[] adds;
+	private final int[] pastes;
+	private final int[] deletes;
+	private final int[] keystrokes;
+	private final int[] linesAdded;
+	private final int[] linesRemoved;
+	private final int[] docLengths;
+	private final int[] docLines;
+	private final long[] timestamps;
+	
+	// next slot to read, only written by the consumer
+	private final AtomicLong head = new AtomicLong(0);
+	// next slot to write, only written by the producer
+	private final AtomicLong tail = new AtomicLong(0);
+	// producer's last seen head, saves reading the consumer's counter on every publish
+	private long cachedHead = 0;
+	
+	private volatile OverflowPolicy overflowPolicy;
+	
+	// most records seen in the ring, only written by the consumer
+	private final AtomicLong highWaterMark = new AtomicLong(0);
+	// only written by the producer
+	private final AtomicLong droppedCount = new AtomicLong(0);
+	private final AtomicLong coalescedCount = new AtomicLong(0);
+	
+	// record merged while the ring was full, guarded by pendingLock
+	private final Object pendingLock = new Object();
+	private volatile boolean hasPending = false;
+	private SoftwareCoDocumentListener pendingDoc;
+	private int pendingAdds;
+	private int pendingPastes;
+	private int pendingDeletes;
+	private int pendingKeystrokes;
+	private int pendingLinesAdded;
+	private int pendingLinesRemoved;
+	private int pendingDocLength;
+	private int pendingDocLines;
+	private long pendingTimestamp;
+	
+	/**
+	 * @param requestedCapacity rounded up to a power of two
+	 * @param overflowPolicy what to do with records that don't fit
+	 */
+	public SoftwareCoEventRingBuffer(int requestedCapacity, OverflowPolicy overflowPolicy) {
+		int size = 2;
+		while (size < requestedCapacity) {
+			size <<= 1;
+		}
+		this.capacity = size;
+		this.mask = size - 1;
+		this.overflowPolicy = overflowPolicy;
+		
+		docs = new SoftwareCoDocumentListener[size];
+		adds = new int[size];
+		pastes = new int[size];
+		deletes = new int[size];
+		keystrokes = new int[size];
+		linesAdded = new int[size];
+		linesRemoved = new int[size];
+		docLengths = new int[size];
+		docLines = new int[size];
+		timestamps = new long[size];
+	}
+	
+	/**
+	 * Publish a record. Must only be called from the producer thread.
+	 * @return false if the record was dropped
+	 */
+	public boolean publish(SoftwareCoDocumentListener doc, int addCount, int pasteCount, int deleteCount,
+			int keystrokeCount, int addedLines, int removedLines, int docLength, int lineCount, long timestamp) {
+		if (hasPending) {
+			synchronized (pendingLock) {
+				// keep records in order, the pending one has to go in first
+				if (hasPending && !this.offer(pendingDoc, pendingAdds, pendingPastes, pendingDeletes,
+						pendingKeystrokes, pendingLinesAdded, pendingLinesRemoved, pendingDocLength,
+						pendingDocLines, pendingTimestamp)) {
+					return this.mergePending(doc, addCount, pasteCount, deleteCount, keystrokeCount,
+							addedLines, removedLines, docLength, lineCount, timestamp);
+				}
+				this.clearPending();
+			}
+		}
+		
+		if (this.offer(doc, addCount, pasteCount, deleteCount, keystrokeCount, addedLines, removedLines,
+				docLength, lineCount, timestamp)) {
+			return true;
+		}
+		
+		if (overflowPolicy == OverflowPolicy.COALESCE) {
+			synchronized (pendingLock) {
+				return this.mergePending(doc, addCount, pasteCount, deleteCount, keystrokeCount,
+						addedLines, removedLines, docLength, lineCount, timestamp);
+			}
+		}
+		droppedCount.lazySet(droppedCount.get() + 1);
+		return false;
+	}
+	
+	private boolean offer(SoftwareCoDocumentListener doc, int addCount, int pasteCount, int deleteCount,
+			int keystrokeCount, int addedLines, int removedLines, int docLength, int lineCount, long timestamp) {
+		long t = tail.get();
+		if (t - cachedHead >= capacity) {
+			cachedHead = head.get();
+			if (t - cachedHead >= capacity) {
+				return false;
+			}
+		}
+		int idx = (int) (t & mask);
+		docs[idx] = doc;
+		adds[idx] = addCount;
+		pastes[idx] = pasteCount;
+		deletes[idx] = deleteCount;
+		keystrokes[idx] = keystrokeCount;
+		linesAdded[idx] = addedLines;
+		linesRemoved[idx] = removedLines;
+		docLengths[idx] = docLength;
+		docLines[idx] = lineCount;
+		timestamps[idx] = timestamp;
+		// the consumer sees the slot writes before the new tail, and a volatile store
+		// (not an ordered one) so a consumer going idle can't miss it, see SoftwareCoEventAggregator
+		tail.set(t + 1);
+		return true;
+	}
+	
+	// called while holding pendingLock
+	private boolean mergePending(SoftwareCoDocumentListener doc, int addCount, int pasteCount, int deleteCount,
+			int keystrokeCount, int addedLines, int removedLines, int docLength, int lineCount, long timestamp) {
+		if (hasPending && pendingDoc != doc) {
+			// only records for the same document can be merged
+			droppedCount.lazySet(droppedCount.get() + 1);
+			return false;
+		}
+		if (!hasPending) {
+			pendingDoc = doc;
+		}
+		pendingAdds += addCount;
+		pendingPastes += pasteCount;
+		pendingDeletes += deleteCount;
+		pendingKeystrokes += keystrokeCount;
+		pendingLinesAdded += addedLines;
+		pendingLinesRemoved += removedLines;
+		pendingDocLength = docLength;
+		pendingDocLines = lineCount;
+		pendingTimestamp = timestamp;
+		hasPending = true;
+		coalescedCount.lazySet(coalescedCount.get() + 1);
+		return true;
+	}
+	
+	// called while holding pendingLock
+	private void clearPending() {
+		hasPending = false;
+		pendingDoc = null;
+		pendingAdds = 0;
+		pendingPastes = 0;
+		pendingDeletes = 0;
+		pendingKeystrokes = 0;
+		pendingLinesAdded = 0;
+		pendingLinesRemoved = 0;
+		pendingDocLength = 0;
+		pendingDocLines = 0;
+		pendingTimestamp = 0;
+	}
+	
+	/**
+	 * Hand up to maxRecords records to the handler. Must only be called from the
+	 * consumer thread. Once the ring is empty the pending merged record, if any,
+	 * is handed over as well.
+	 * @return the number of records handled
+	 */
+	public int drain(EventHandler handler, int maxRecords) {
+		long h = head.get();
+		long available = tail.get() - h;
+		// only the consumer shrinks the ring, so it's fullest right before a drain
+		if (available > highWaterMark.get()) {
+			highWaterMark.lazySet(available);
+		}
+		int count = (int) Math.min(available, maxRecords);
+		for (int i = 0; i < count; i++) {
+			int idx = (int) ((h + i) & mask);
+			SoftwareCoDocumentListener doc = docs[idx];
+			// release the reference so the slot doesn't hold on to a closed document's listener
+			docs[idx] = null;
+			handler.onEvent(doc, adds[idx], pastes[idx], deletes[idx], keystrokes[idx], linesAdded[idx],
+					linesRemoved[idx], docLengths[idx], docLines[idx], timestamps[idx]);
+		}
+		if (count > 0) {
+			head.lazySet(h + count);
+		}
+		
+		if (count == available && hasPending) {
+			synchronized (pendingLock) {
+				// the producer doesn't publish into the ring while a record is pending,
+				// so the ring is still empty and the pending record is the next one in order
+				if (hasPending && tail.get() == head.get()) {
+					handler.onEvent(pendingDoc, pendingAdds, pendingPastes, pendingDeletes, pendingKeystrokes,
+							pendingLinesAdded, pendingLinesRemoved, pendingDocLength, pendingDocLines,
+							pendingTimestamp);
+					this.clearPending();
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	public boolean isEmpty() {
+		return tail.get() == head.get() && !hasPending;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public long size() {
+		return tail.get() - head.get();
+	}
+	
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+	
+	public long getHighWaterMark() {
+		return highWaterMark.get();
+	}
+	
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * The plugin's shared threads. Api requests run on a bounded pool so an api
+ * outage can't grow the plugin's thread count inside the IDE, and delayed
+ * work runs on a single scheduler thread instead of sleeping threads.
+ *
+ */
+public class SoftwareCoExecutors {
+
+	private final static int API_CORE_THREADS = 2;
+	private final static int API_MAX_THREADS = Math.max(API_CORE_THREADS,
+			Integer.getInteger("software.apiMaxThreads", 4));
+	private final static int API_QUEUE_CAPACITY = Math.max(1,
+			Integer.getInteger("software.apiQueueCapacity", 16));
+	private final static long API_KEEP_ALIVE_SECONDS = 60;
+
+	private final static AtomicLong apiRejectedCount = new AtomicLong();
+	private final static SoftwareCoLogger.RateLimiter rejectedLogLimiter =
+			new SoftwareCoLogger.RateLimiter(1000 * 60);
+
+	private static ThreadPoolExecutor apiExecutor;
+	private static ScheduledThreadPoolExecutor scheduler;
+
+	static {
+		start();
+	}
+
+	/**
+	 * Create the executors, after a shutdown this replaces them with new ones
+	 */
+	public static synchronized void start() {
+		if (apiExecutor == null || apiExecutor.isShutdown()) {
+			apiExecutor = newApiExecutor();
+		}
+		if (scheduler == null || scheduler.isShutdown()) {
+			scheduler = new ScheduledThreadPoolExecutor(1, newThreadFactory("Software.com scheduler", false));
+			scheduler.setRemoveOnCancelPolicy(true);
+		}
+	}
+
+	/**
+	 * Stop both executors, running api requests are interrupted and scheduled
+	 * work is dropped. Waits for the threads to finish until the deadline.
+	 */
+	public static void shutdown(long deadlineMillis) {
+		ThreadPoolExecutor api;
+		ScheduledThreadPoolExecutor sched;
+		synchronized (SoftwareCoExecutors.class) {
+			api = apiExecutor;
+			sched = scheduler;
+		}
+		sched.shutdownNow();
+		api.shutdownNow();
+		try {
+			sched.awaitTermination(Math.max(0, deadlineMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			api.awaitTermination(Math.max(0, deadlineMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static ThreadPoolExecutor newApiExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				API_CORE_THREADS, API_MAX_THREADS, API_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(API_QUEUE_CAPACITY),
+				newThreadFactory("Software.com api worker", true),
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						if (executor.isShutdown()) {
+							throw new RejectedExecutionException("Software.com api executor is shut down");
+						}
+						apiRejectedCount.incrementAndGet();
+						SoftwareCoLogger.error(rejectedLogLimiter,
+								"Software.com: Api request rejected, the request queue is full", null);
+						throw new RejectedExecutionException("Software.com api request queue is full");
+					}
+				});
+		// let the pool shrink to nothing while the plugin is idle
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Returns a factory for daemon threads with the given name, numbered if
+	 * the factory will create more than one thread
+	 */
+	public static ThreadFactory newThreadFactory(final String name, final boolean numbered) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				String threadName = numbered ? name + " " + threadCount.incrementAndGet() : name;
+				Thread thread = new Thread(r, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Bounded pool for api requests, submitting to a full pool throws RejectedExecutionException
+	 */
+	public static synchronized ThreadPoolExecutor getApiExecutor() {
+		return apiExecutor;
+	}
+
+	public static synchronized ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Run the task once after the delay, an exception thrown by the task is logged.
+	 * Returns null if the scheduler has been shut down.
+	 */
+	public static ScheduledFuture<?> schedule(final Runnable task, long delay, TimeUnit unit) {
+		try {
+			return getScheduler().schedule(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} catch (Exception e) {
+						SoftwareCoLogger.error("Software.com: Scheduled task failed.", e);
+					}
+				}
+			}, delay, unit);
+		} catch (RejectedExecutionException e) {
+			SoftwareCoLogger.debug("Software.com: The scheduler is shut down, dropping the scheduled task");
+			return null;
+		}
+	}
+
+	public static int getApiThreadCount() {
+		return getApiExecutor().getPoolSize();
+	}
+
+	public static int getApiActiveThreadCount() {
+		return getApiExecutor().getActiveCount();
+	}
+
+	public static int getApiQueueDepth() {
+		return getApiExecutor().getQueue().size();
+	}
+
+	public static long getApiRejectedCount() {
+		return apiRejectedCount.get();
+	}
+
+	public static String getApiExecutorStats() {
+		return "[threads: " + getApiThreadCount() + "; active: " + getApiActiveThreadCount()
+				+ "; queued: " + getApiQueueDepth() + "; rejected: " + getApiRejectedCount() + "]";
+	}
+}
@@ -5,14 +5,17 @@
 package com.softwareco.eclipse.plugin;
 
 import java.net.URI;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IEditorReference;
 import org.eclipse.ui.IPartListener2;
 import org.eclipse.ui.IURIEditorInput;
+import org.eclipse.ui.IWorkbenchPage;
 import org.eclipse.ui.IWorkbenchPart;
 import org.eclipse.ui.IWorkbenchPartReference;
 import org.eclipse.ui.part.FileEditorInput;
@@ -26,7 +29,10 @@ import org.eclipse.ui.texteditor.ITextEditor;
  */
 public class SoftwareCoFileEditorListener implements IPartListener2 {
 
-	private static Set<IDocument> documentSet = new HashSet<IDocument>();
+	// weak keys, a document that's no longer referenced by any editor can be collected
+	// even if we missed its close. The listener doesn't reference the document.
+	private static Map<IDocument, SoftwareCoDocumentListener> documentListeners =
+			Collections.synchronizedMap(new WeakHashMap<IDocument, SoftwareCoDocumentListener>());
 
 	private String checkPart(IWorkbenchPartReference partRef) {
 		String fileName = null;
@@ -41,23 +47,80 @@ public class SoftwareCoFileEditorListener implements IPartListener2 {
 				URI uri = ((IURIEditorInput) input).getURI();
 				if (uri != null && uri.getPath() != null) {
 					fileName = uri.getPath();
-					String projectName = SoftwareCo.getActiveProjectName(fileName);
-					
-					SoftwareCo.initializeKeystrokeObjectGraph(projectName, fileName);
 				}
 
 				IDocument document = (((ITextEditor) editor).getDocumentProvider()).getDocument(input);
-				this.addDocumentListener(document);
+				SoftwareCoDocumentListener listener = this.addDocumentListener(document, fileName);
+				if (listener != null && listener.getFileName() != null) {
+					SoftwareCo.initializeKeystrokeObjectGraph(listener.getProjectName(), listener.getProjectDirectory());
+				}
 			}
 		}
 		return fileName;
 	}
 
-	public void addDocumentListener(IDocument document) {
-		if (document != null && !documentSet.contains(document)) {
-			documentSet.add(document);
-			document.addDocumentListener(new SoftwareCoDocumentListener());
+	/**
+	 * Attach a document listener bound to the given file, or re-bind the existing
+	 * one if the document's file changed (input change or rename).
+	 * @param document
+	 * @param fileName
+	 * @return the document's listener
+	 */
+	public SoftwareCoDocumentListener addDocumentListener(IDocument document, String fileName) {
+		if (document == null) {
+			return null;
+		}
+		SoftwareCoDocumentListener listener = documentListeners.get(document);
+		if (listener == null) {
+			listener = new SoftwareCoDocumentListener(fileName);
+			documentListeners.put(document, listener);
+			document.addDocumentListener(listener);
+		} else {
+			listener.bind(fileName);
+		}
+		return listener;
+	}
+	
+	/**
+	 * Remove the document's listener, called once the last editor on the document
+	 * has been closed.
+	 * @param document
+	 */
+	public void removeDocumentListener(IDocument document) {
+		if (document == null) {
+			return;
+		}
+		SoftwareCoDocumentListener listener = documentListeners.remove(document);
+		if (listener != null) {
+			document.removeDocumentListener(listener);
+		}
+	}
+	
+	public static int getDocumentListenerCount() {
+		return documentListeners.size();
+	}
+	
+	private static IDocument getDocument(IEditorPart editor) {
+		if (editor instanceof ITextEditor && ((ITextEditor) editor).getDocumentProvider() != null) {
+			return ((ITextEditor) editor).getDocumentProvider().getDocument(editor.getEditorInput());
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns true if an editor other than the closed one still has the document open.
+	 */
+	private static boolean isDocumentOpen(IWorkbenchPage page, IWorkbenchPart closedPart, IDocument document) {
+		if (page == null) {
+			return false;
 		}
+		for (IEditorReference editorRef : page.getEditorReferences()) {
+			IEditorPart editor = editorRef.getEditor(false /* don't restore the editor */);
+			if (editor != null && editor != closedPart && getDocument(editor) == document) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	@Override
@@ -72,8 +135,30 @@ public class SoftwareCoFileEditorListener implements IPartListener2 {
 
 	@Override
 	public void partClosed(IWorkbenchPartReference partRef) {
-		String fileName = this.checkPart(partRef);
+		IWorkbenchPart part = partRef.getPart(false);
+		if (!(part instanceof IEditorPart)) {
+			return;
+		}
+		IEditorPart editor = (IEditorPart) part;
+		IEditorInput input = editor.getEditorInput();
+		if (!(editor instanceof ITextEditor) || !(input instanceof FileEditorInput)) {
+			return;
+		}
+		
+		String fileName = null;
+		URI uri = ((IURIEditorInput) input).getURI();
+		if (uri != null && uri.getPath() != null) {
+			fileName = uri.getPath();
+		}
 		SoftwareCo.handleFileClosedEvent(fileName);
+		
+		//
+		// Detach the listener once the last editor on the document goes away
+		//
+		IDocument document = getDocument(editor);
+		if (document != null && !isDocumentOpen(partRef.getPage(), part, document)) {
+			this.removeDocumentListener(document);
+		}
 	}
 
 	@Override
@@ -83,8 +168,8 @@ public class SoftwareCoFileEditorListener implements IPartListener2 {
 
 	@Override
 	public void partOpened(IWorkbenchPartReference partRef) {
-		this.checkPart(partRef);
-		SoftwareCo.handleFileOpenedEvent();
+		String fileName = this.checkPart(partRef);
+		SoftwareCo.handleFileOpenedEvent(fileName);
 	}
 
 	@Override
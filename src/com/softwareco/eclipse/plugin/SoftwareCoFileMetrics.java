@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+/**
+ * 
+ * Per file keystroke metrics. The counters are plain fields so updating them
+ * while typing is a field write. The field names match the backend's source
+ * properties, the object is only serialized to json when the payload is sent.
+ *
+ */
+public class SoftwareCoFileMetrics {
+
+	private int keys = 0;
+	private int add = 0;
+	private int paste = 0;
+	private int open = 0;
+	private int close = 0;
+	private int delete = 0;
+	private int length = 0;
+	private int netkeys = 0;
+	// -1 to help identify when setting it for the 1st time
+	private int lines = -1;
+	private int linesAdded = 0;
+	private int linesRemoved = 0;
+	private String syntax = "";
+	private String trackInfo = "";
+	
+	public void addKeystrokes(int count) {
+		this.add += count;
+		this.updateKeys();
+	}
+	
+	public void deleteKeystrokes(int count) {
+		this.delete += count;
+		this.updateKeys();
+	}
+	
+	private void updateKeys() {
+		// "netkeys" = add - delete
+		// "keys" = add + delete
+		this.netkeys = this.add - this.delete;
+		this.keys = this.add + this.delete;
+	}
+	
+	public void addPaste(int count) {
+		this.paste += count;
+	}
+	
+	public void incrementOpen() {
+		this.open++;
+	}
+	
+	public void incrementClose() {
+		this.close++;
+	}
+	
+	public void addLinesAdded(int count) {
+		this.linesAdded += count;
+	}
+	
+	public void addLinesRemoved(int count) {
+		this.linesRemoved += count;
+	}
+	
+	public boolean hasData() {
+		// go through all of the different types of event vals and check if we have an incremented value
+		return add > 0 || open > 0 || close > 0 || paste > 0 || delete > 0;
+	}
+
+	public int getKeys() {
+		return keys;
+	}
+	public int getAdd() {
+		return add;
+	}
+	public int getPaste() {
+		return paste;
+	}
+	public int getOpen() {
+		return open;
+	}
+	public int getClose() {
+		return close;
+	}
+	public int getDelete() {
+		return delete;
+	}
+	public int getNetkeys() {
+		return netkeys;
+	}
+	public int getLength() {
+		return length;
+	}
+	public void setLength(int length) {
+		this.length = length;
+	}
+	public int getLines() {
+		return lines;
+	}
+	public void setLines(int lines) {
+		this.lines = lines;
+	}
+	public int getLinesAdded() {
+		return linesAdded;
+	}
+	public int getLinesRemoved() {
+		return linesRemoved;
+	}
+	public String getSyntax() {
+		return syntax;
+	}
+	public void setSyntax(String syntax) {
+		this.syntax = syntax;
+	}
+	public String getTrackInfo() {
+		return trackInfo;
+	}
+	public void setTrackInfo(String trackInfo) {
+		this.trackInfo = trackInfo;
+	}
+
+	@Override
+	public String toString() {
+		return "SoftwareCoFileMetrics [keys=" + keys + ", add=" + add + ", paste=" + paste + ", open=" + open
+				+ ", close=" + close + ", delete=" + delete + ", length=" + length + ", netkeys=" + netkeys
+				+ ", lines=" + lines + ", linesAdded=" + linesAdded + ", linesRemoved=" + linesRemoved + "]";
+	}
+	
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Decides when keystroke payloads are flushed. Nothing is scheduled until
+ * there's activity, the first activity arms a flush for the end of the
+ * payload's one minute window. A payload that grows past the file or size
+ * threshold is flushed right away, the next payload then continues the same
+ * window so the backend still sees one minute start/end pairs.
+ *
+ */
+public class SoftwareCoFlushScheduler {
+
+	public final static long WINDOW_SECONDS = 60;
+
+	private final static int MAX_PENDING_FILES = Integer.getInteger("software.flushMaxFiles", 100);
+	private final static int MAX_PENDING_BYTES = Integer.getInteger("software.flushMaxBytes", 64 * 1024);
+
+	private static SoftwareCoFlushScheduler instance = null;
+
+	private boolean running = false;
+	private ScheduledFuture<?> flushTask;
+	// when the armed flush runs, 0 if none is armed
+	private volatile long scheduledFlushMillis = 0;
+	private boolean earlyFlush = false;
+
+	private long flushCount = 0;
+	private long earlyFlushCount = 0;
+
+	public static synchronized SoftwareCoFlushScheduler getInstance() {
+		if (instance == null) {
+			instance = new SoftwareCoFlushScheduler();
+		}
+		return instance;
+	}
+
+	/**
+	 * Protected constructor to defeat instantiation
+	 */
+	protected SoftwareCoFlushScheduler() {
+		//
+	}
+
+	public synchronized void start() {
+		running = true;
+	}
+
+	public synchronized void stop() {
+		running = false;
+		cancel();
+	}
+
+	public synchronized boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Called after something was recorded into the payload. Arms the flush
+	 * for the end of the payload's window, or flushes early if the payload
+	 * is over a threshold.
+	 */
+	public void onActivity(SoftwareCoKeystrokeCount keystrokeCount) {
+		if (keystrokeCount.getFileCount() >= MAX_PENDING_FILES
+				|| keystrokeCount.getEstimatedSize() >= MAX_PENDING_BYTES) {
+			requestFlush(System.currentTimeMillis(), true);
+			return;
+		}
+		long windowEndMillis = (keystrokeCount.getStart() + WINDOW_SECONDS) * 1000;
+		long scheduled = scheduledFlushMillis;
+		if (scheduled != 0 && scheduled <= windowEndMillis) {
+			// already armed for this window or an earlier one
+			return;
+		}
+		requestFlush(windowEndMillis, false);
+	}
+
+	/**
+	 * Arm the flush to run at the given time unless one is already due
+	 * earlier, overlapping requests are coalesced into one flush.
+	 */
+	protected synchronized void requestFlush(long flushMillis, boolean early) {
+		if (!running) {
+			return;
+		}
+		if (scheduledFlushMillis != 0 && scheduledFlushMillis <= flushMillis) {
+			earlyFlush |= early;
+			return;
+		}
+		cancel();
+		earlyFlush = early;
+		scheduledFlushMillis = flushMillis;
+		long delay = Math.max(0, flushMillis - System.currentTimeMillis());
+		flushTask = SoftwareCoExecutors.schedule(new Runnable() {
+			public void run() {
+				runFlush();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void cancel() {
+		if (flushTask != null) {
+			flushTask.cancel(false);
+			flushTask = null;
+		}
+		scheduledFlushMillis = 0;
+		earlyFlush = false;
+	}
+
+	private void runFlush() {
+		boolean early;
+		synchronized (this) {
+			early = earlyFlush;
+			flushTask = null;
+			scheduledFlushMillis = 0;
+			earlyFlush = false;
+			flushCount++;
+			if (early) {
+				earlyFlushCount++;
+			}
+		}
+
+		try {
+			SoftwareCo.processKeystrokes(early);
+		} catch (Exception e) {
+			// keep scheduling, the next activity or window re-arms the flush
+			SoftwareCoLogger.error("Software.com: Unable to flush the keystroke payloads.", e);
+		} finally {
+			// re-arm for payloads that had activity but weren't due yet
+			SoftwareCoKeystrokeManager keystrokeMgr = SoftwareCoKeystrokeManager.getInstance();
+			for (SoftwareCoKeystrokeManager.KeystrokeCountWrapper wrapper : keystrokeMgr.getKeystrokeCountWrapperList()) {
+				SoftwareCoKeystrokeCount keystrokeCount = wrapper.getKeystrokeCount();
+				if (keystrokeCount.hasData()) {
+					onActivity(keystrokeCount);
+				}
+			}
+		}
+	}
+
+	public synchronized long getFlushCount() {
+		return flushCount;
+	}
+
+	public synchronized long getEarlyFlushCount() {
+		return earlyFlushCount;
+	}
+
+	public long getScheduledFlushMillis() {
+		return scheduledFlushMillis;
+	}
+}
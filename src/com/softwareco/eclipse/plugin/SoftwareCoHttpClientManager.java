@@ -12,17 +12,23 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.ParseException;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
-import org.eclipse.ui.IWorkbench;
-import org.eclipse.ui.PlatformUI;
 
 
 public class SoftwareCoHttpClientManager {
@@ -35,6 +41,49 @@ public class SoftwareCoHttpClientManager {
 	protected static boolean downloadingPM = false;
     
     private SoftwareCoSessionManager sessionMgr = SoftwareCoSessionManager.getInstance();
+    
+    //
+    // Number of keystroke payloads the uploader will hold before
+    // new ones go straight to the offline data file
+    //
+    private final static int UPLOAD_QUEUE_CAPACITY = Integer.getInteger("software.uploadQueueCapacity", 64);
+    
+    //
+    // Send all of a flush cycle's payloads in one /data/batch request
+    //
+    private final static boolean BATCH_UPLOADS = Boolean.parseBoolean(
+    		System.getProperty("software.batchUploads", "true"));
+    
+    private final AtomicInteger lastFlushRequestCount = new AtomicInteger();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong keystrokeRequestCount = new AtomicLong();
+    private final AtomicLong coalescedUploadCount = new AtomicLong();
+    
+    // the most recently queued upload, guarded by this
+    private KeystrokeUploadTask queuedUpload = null;
+    
+    //
+    // Single worker uploader, keeps the offline flush and the POST off the
+    // UI and flush threads. A full queue falls back to the offline store.
+    //
+    private ThreadPoolExecutor uploadExecutor = newUploadExecutor();
+    
+    private ThreadPoolExecutor newUploadExecutor() {
+    	return new ThreadPoolExecutor(
+    		1, 1, 0L, TimeUnit.MILLISECONDS,
+    		new ArrayBlockingQueue<Runnable>(Math.max(1, UPLOAD_QUEUE_CAPACITY)),
+    		SoftwareCoExecutors.newThreadFactory("Software.com keystroke uploader", false),
+    		new RejectedExecutionHandler() {
+    			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+    				if (r instanceof KeystrokeUploadTask) {
+    					if (!executor.isShutdown()) {
+    						SoftwareCoLogger.warn("Software.com: Keystroke uploader queue is full, storing the payload offline", null);
+    					}
+    					storeKeystrokeDataOffline(((KeystrokeUploadTask) r).take());
+    				}
+    			}
+    		});
+    }
 
 	/**
 	 * Protected constructor to defeat instantiation
@@ -99,74 +148,280 @@ public class SoftwareCoHttpClientManager {
     }
 
 	/**
-	 * The public method used to send the keystroke object information to the plugin manager
+	 * The public method used to send the keystroke object information to the plugin manager.
+	 * The payload is handed to the uploader queue and this call returns immediately, the
+	 * offline flush is started and the POST is made on the uploader thread.
 	 * @param keystrokeCount
 	 */
 	public void sendKeystrokeData(SoftwareCoKeystrokeCount keystrokeCount) {
+		sendKeystrokeData(Collections.singletonList(keystrokeCount));
+	}
+	
+	/**
+	 * Send the payloads from one flush cycle. With batch uploads enabled they're
+	 * posted together to /data/batch and only sent one at a time if the batch
+	 * request is rejected.
+	 * @param keystrokeCounts
+	 */
+	public void sendKeystrokeData(List<SoftwareCoKeystrokeCount> keystrokeCounts) {
+		if (keystrokeCounts.isEmpty()) {
+			return;
+		}
+		KeystrokeUploadTask uploadTask;
+		ThreadPoolExecutor executor;
+		synchronized (this) {
+			//
+			// If the last upload is still waiting behind a slow one, add these
+			// payloads to it so they go out in the same request
+			//
+			if (queuedUpload != null && queuedUpload.append(keystrokeCounts)) {
+				coalescedUploadCount.incrementAndGet();
+				return;
+			}
+			uploadTask = new KeystrokeUploadTask(keystrokeCounts);
+			queuedUpload = uploadTask;
+			executor = uploadExecutor;
+		}
+		// once shut down the executor hands the task to the rejection handler, which stores it offline
+		executor.execute(uploadTask);
+	}
+	
+	/**
+	 * Restart the uploader if it has been shut down
+	 */
+	public synchronized void start() {
+		if (uploadExecutor.isShutdown()) {
+			uploadExecutor = newUploadExecutor();
+		}
+	}
+	
+	/**
+	 * Stop the uploader without any more network calls. Uploads that haven't
+	 * started are stored offline, an upload already in progress gets until
+	 * the deadline to finish (it stores its payloads offline if it fails).
+	 */
+	public void shutdown(long deadlineMillis) {
+		ThreadPoolExecutor executor;
+		synchronized (this) {
+			executor = uploadExecutor;
+			queuedUpload = null;
+		}
+		executor.shutdown();
+		
+		List<Runnable> pending = new ArrayList<Runnable>();
+		executor.getQueue().drainTo(pending);
+		for (Runnable r : pending) {
+			if (r instanceof KeystrokeUploadTask) {
+				storeKeystrokeDataOffline(((KeystrokeUploadTask) r).take());
+			}
+		}
+		
+		try {
+			if (!executor.awaitTermination(Math.max(0, deadlineMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				SoftwareCoLogger.warn("Software.com: A keystroke upload was still running at shutdown", null);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Returns the number of keystroke uploads waiting on the uploader
+	 */
+	public synchronized int getPendingUploadCount() {
+		return uploadExecutor.getQueue().size();
+	}
+	
+	/**
+	 * Returns the number of keystroke requests made by the last flush cycle
+	 */
+	public int getLastFlushRequestCount() {
+		return lastFlushRequestCount.get();
+	}
+	
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+	
+	public long getKeystrokeRequestCount() {
+		return keystrokeRequestCount.get();
+	}
+	
+	/**
+	 * Returns the number of flushes that were merged into an upload that hadn't started yet
+	 */
+	public long getCoalescedUploadCount() {
+		return coalescedUploadCount.get();
+	}
+	
+	private void recordFlush(int requests, int payloads) {
+		lastFlushRequestCount.set(requests);
+		flushCount.incrementAndGet();
+		keystrokeRequestCount.addAndGet(requests);
+		SoftwareCoLogger.debug(() -> "Software.com: Sent " + payloads + " keystroke payload(s) in "
+				+ requests + " request(s), connection pool " + SoftwareCoUtils.getConnectionPoolStats()
+				+ ", api executor " + SoftwareCoExecutors.getApiExecutorStats()
+				+ ", event ring " + SoftwareCoEventAggregator.getInstance().getRingStats());
+	}
+	
+	/**
+	 * Store the payload in the offline data file so it's sent with the next batch
+	 */
+	protected void storeKeystrokeDataOffline(SoftwareCoKeystrokeCount keystrokeCount) {
+		sessionMgr.storeKeystrokeData(keystrokeCount);
+	}
+	
+	/**
+	 * Send the offline data, uploads wait for it so the payloads stay in order
+	 */
+	protected CompletableFuture<Boolean> sendOfflineData() {
+		return sessionMgr.sendOfflineData();
+	}
+	
+	public void storeKeystrokeDataOffline(List<SoftwareCoKeystrokeCount> keystrokeCounts) {
+		for (SoftwareCoKeystrokeCount keystrokeCount : keystrokeCounts) {
+			storeKeystrokeDataOffline(keystrokeCount);
+		}
+	}
+	
+	/**
+	 * Post the payload and consume the response. The payload is streamed as json.
+	 * @return the response status, or -1 if there was no response
+	 */
+	protected int postKeystrokeData(String api, Object payload) {
+		HttpResponse httpResponse = null;
+		try {
+			httpResponse = new KeystrokeDataSendTask(api, SoftwareCoJsonEntity.forObject(payload)).call();
+		} catch (Exception e) {
+			SoftwareCoLogger.error("Software.com: Unable to get the response from the http request.", e);
+		}
+		
+		if (httpResponse == null) {
+			return -1;
+		}
+		
+		//
+		// Handle the response (consume the entity to prevent connection pool leak/timeout)
+		//
+		String entityResult = "";
+		if (httpResponse.getEntity() != null) {
+			try {
+				entityResult = EntityUtils.toString(httpResponse.getEntity());
+			} catch (ParseException | IOException e) {
+				SoftwareCoLogger.error("Software.com: Unable to parse the non-null plugin manager response.", e);
+			} finally {
+				EntityUtils.consumeQuietly(httpResponse.getEntity());
+			}
+		}
+		
+		//
+		// If it's a response status of anything other than the 200 series then the POST request failed
+		//
+		int responseStatus = httpResponse.getStatusLine().getStatusCode();
+		if (responseStatus >= 300) {
+			SoftwareCoLogger.error("Software.com: Unable to send the keystroke payload, "
+					+ "response: [status: " + responseStatus + ", entityResult: '" + entityResult + "']");
+		}
+		return responseStatus;
+	}
+	
+	/**
+	 * True if the status means the api doesn't take batches, as opposed to failing
+	 */
+	private static boolean isBatchUnsupported(int status) {
+		return status == 400 || status == 404 || status == 405 || status == 501;
+	}
+	
+	/**
+	 * Uploader queue task, starts sending any offline data and sends the keystroke payloads.
+	 * Payloads that can't be sent are saved offline.
+	 */
+	protected class KeystrokeUploadTask implements Runnable {
+		
+		private final List<SoftwareCoKeystrokeCount> keystrokeCounts = new ArrayList<SoftwareCoKeystrokeCount>();
+		private boolean taken = false;
+		
+		public KeystrokeUploadTask(List<SoftwareCoKeystrokeCount> keystrokeCounts) {
+			this.keystrokeCounts.addAll(keystrokeCounts);
+		}
+		
+		/**
+		 * Add payloads to this upload, returns false once the upload has started
+		 */
+		public synchronized boolean append(List<SoftwareCoKeystrokeCount> moreKeystrokeCounts) {
+			if (taken) {
+				return false;
+			}
+			keystrokeCounts.addAll(moreKeystrokeCounts);
+			return true;
+		}
+		
+		/**
+		 * Take the payloads to send, nothing can be appended afterwards
+		 */
+		public synchronized List<SoftwareCoKeystrokeCount> take() {
+			taken = true;
+			return keystrokeCounts;
+		}
 
-		final IWorkbench workbench = PlatformUI.getWorkbench();
-
-		workbench.getDisplay().asyncExec(new Runnable() {
-			public void run() {
-				
-				sessionMgr.sendOfflineData();
-        
-				String projectName = keystrokeCount.getProject().getName();
-				KeystrokeDataSendTask sendTask = new KeystrokeDataSendTask(keystrokeCount);
-				
-				Future<HttpResponse> response = SoftwareCoUtils.executorService.submit(sendTask);
-				
-				boolean isRequestOk = true;
-				
+		@Override
+		public void run() {
+			
+			List<SoftwareCoKeystrokeCount> keystrokeCounts = take();
+			
+			if (!SoftwareCoUtils.getApiCircuitBreaker().isCallPermitted()) {
 				//
-				// Handle the Future if it exist
+				// The api is failing, keep the payloads for the next offline send
+				// instead of waiting on the network
 				//
-				if ( response != null ) {
-					HttpResponse httpResponse = null;
-					try {
-						httpResponse = response.get();
-						
-						if (httpResponse != null) {
-							//
-							// Handle the response from the Future (consume the entity to prevent connection pool leak/timeout)
-							//
-							String entityResult = "";
-							if (httpResponse.getEntity() != null) {
-								try {
-									entityResult = EntityUtils.toString(httpResponse.getEntity());
-								} catch (ParseException | IOException e) {
-									SoftwareCoLogger.error("Software.com: Unable to parse the non-null plugin manager response.", e);
-								}
-							}
-							
-							//
-							// If it's a response status of anything other than the 200 series then the POST request failed
-							//
-							int responseStatus = httpResponse.getStatusLine().getStatusCode();
-							if (responseStatus >= 300) {
-								SoftwareCoLogger.error("Software.com: Unable to send the keystroke payload, "
-										+ "response: [status: " + responseStatus + ", entityResult: '" + entityResult + "']");
-								isRequestOk = false;
-							}
-						}
-						
-					} catch (InterruptedException | ExecutionException e) {
-						SoftwareCoLogger.error("Software.com: Unable to get the response from the http request.", e);
-						isRequestOk = false;
+				for (SoftwareCoKeystrokeCount keystrokeCount : keystrokeCounts) {
+					storeKeystrokeDataOffline(keystrokeCount);
+				}
+				recordFlush(0, keystrokeCounts.size());
+				return;
+			}
+			
+			//
+			// Start the offline data on its way, or share the replay that's already
+			// sending it. The batches go out on the api pool, the uploader doesn't
+			// wait for them since a large journal would hold up every new payload.
+			//
+			sendOfflineData();
+			
+			int requests = 0;
+			
+			if (BATCH_UPLOADS && keystrokeCounts.size() > 1) {
+				requests++;
+				int status = postKeystrokeData("/data/batch", keystrokeCounts);
+				if (status >= 200 && status < 300) {
+					recordFlush(requests, keystrokeCounts.size());
+					return;
+				}
+				if (!isBatchUnsupported(status)) {
+					//
+					// No response, or the api is failing, sending them one at a time
+					// would only multiply the failed requests
+					//
+					for (SoftwareCoKeystrokeCount keystrokeCount : keystrokeCounts) {
+						storeKeystrokeDataOffline(keystrokeCount);
 					}
+					recordFlush(requests, keystrokeCounts.size());
+					return;
 				}
-				
-				if (!isRequestOk) {
+				SoftwareCoLogger.warn("Software.com: Batch keystroke upload was rejected, "
+						+ "sending the payloads individually", null);
+			}
+			
+			for (SoftwareCoKeystrokeCount keystrokeCount : keystrokeCounts) {
+				requests++;
+				int status = postKeystrokeData("/data", keystrokeCount);
+				if (status < 200 || status >= 300) {
 					// save the data offline
-					String payload = SoftwareCo.gson.toJson(keystrokeCount);
-					sessionMgr.storePayload(payload);
+					storeKeystrokeDataOffline(keystrokeCount);
 				}
-				
-				// reset the data
-				SoftwareCoKeystrokeManager.getInstance().resetData(projectName);
-				
 			}
-		});
+			recordFlush(requests, keystrokeCounts.size());
+		}
 	}
 	
 	/***
@@ -214,49 +469,42 @@ public class SoftwareCoHttpClientManager {
 	***/
 	protected class KeystrokeDataSendTask implements Callable<HttpResponse> {
 		
-		private SoftwareCoKeystrokeCount keystrokeCount;
+		private String api;
+		private HttpEntity kpmData;
 		
-		public KeystrokeDataSendTask(SoftwareCoKeystrokeCount keystrokeCount) {
-			this.keystrokeCount = keystrokeCount;
+		public KeystrokeDataSendTask(String api, HttpEntity kpmData) {
+			this.api = api;
+			this.kpmData = kpmData;
 		}
 
 		@Override
 		public HttpResponse call() throws Exception {
-			//
-			// create the json string
-			//
-			String kpmData = SoftwareCo.gson.toJson(keystrokeCount);
 			HttpPost request = null;
 			try {
 
 				//
 				// Add the json body to the outgoing post request
 				//
-				request = new HttpPost(SoftwareCoUtils.api_endpoint + "/data");
+				request = new HttpPost(SoftwareCoUtils.getApiEndpoint() + api);
 				String jwtToken = SoftwareCoSessionManager.getItem("jwt");
                 // we need the header, but check if it's null anyway
                 if (jwtToken != null) {
                     request.addHeader("Authorization", jwtToken);
                 }
-				StringEntity params = new StringEntity(kpmData);
-				request.addHeader("Content-type", "application/json");
-				request.setEntity(params);
+				request.setEntity(kpmData);
 
 				//
 				// Send the POST request
 				//
 				SoftwareCoUtils.logApiRequest(request, kpmData);
-				HttpResponse response = SoftwareCoUtils.httpClient.execute(request);
+				HttpResponse response = SoftwareCoUtils.executeApiRequest(request);
 				//
-				// Return the response
+				// Return the response, the caller consumes the entity which
+				// hands the connection back to the pool
 				//
 				return response;
 			} catch (Exception e) {
 				SoftwareCoLogger.error("Software.com: Unable to send the keystroke payload request.", e);
-			} finally {
-				if (request != null) {
-					request.releaseConnection();
-				}
 			}
 			
 			return null;
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Request entity that writes its JSON straight to the connection through a
+ * JsonWriter instead of building the whole body as a String first. The body
+ * is sent chunked and can be gzip encoded. The source writes the json again
+ * each time the entity is written, so a retried request sends it again.
+ */
+public class SoftwareCoJsonEntity extends AbstractHttpEntity {
+
+	//
+	// Off by default, only enable it against an api that accepts gzip request bodies
+	//
+	public final static boolean GZIP_REQUESTS = Boolean.getBoolean("software.gzipRequests");
+
+	/**
+	 * Writes the body when the entity is written
+	 */
+	public interface JsonSource {
+		void write(JsonWriter writer) throws IOException;
+	}
+
+	private final JsonSource source;
+	private final boolean gzip;
+
+	public SoftwareCoJsonEntity(JsonSource source, boolean gzip) {
+		this.source = source;
+		this.gzip = gzip;
+		setContentType(ContentType.APPLICATION_JSON.toString());
+		if (gzip) {
+			setContentEncoding("gzip");
+		}
+		setChunked(true);
+	}
+
+	public SoftwareCoJsonEntity(JsonSource source) {
+		this(source, GZIP_REQUESTS);
+	}
+
+	/**
+	 * Entity for an object serialized with the plugin's Gson instance
+	 */
+	public static SoftwareCoJsonEntity forObject(final Object obj) {
+		return new SoftwareCoJsonEntity(new JsonSource() {
+			public void write(JsonWriter writer) throws IOException {
+				SoftwareCo.gson.toJson(obj, obj.getClass(), writer);
+			}
+		});
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	/**
+	 * Buffers the whole body, the client only ever calls writeTo
+	 */
+	@Override
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeTo(out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		GZIPOutputStream gzipStream = null;
+		OutputStream out = outstream;
+		if (gzip) {
+			gzipStream = new GZIPOutputStream(outstream, 8192);
+			out = gzipStream;
+		}
+		Writer streamWriter = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		JsonWriter writer = new JsonWriter(streamWriter);
+		source.write(writer);
+		writer.flush();
+		if (gzipStream != null) {
+			// writes the trailer without closing the connection's stream
+			gzipStream.finish();
+		}
+		outstream.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "[Content-Type: application/json, Content-Encoding: " + (gzip ? "gzip" : "identity")
+				+ ", Chunked: true]";
+	}
+}
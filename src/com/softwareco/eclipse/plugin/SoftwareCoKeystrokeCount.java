@@ -4,89 +4,197 @@
  */
 package com.softwareco.eclipse.plugin;
 
-
-import java.util.Map.Entry;
-import java.util.Set;
-
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 public class SoftwareCoKeystrokeCount {
 
-	// event type
-	private String type = "Events";
+	public final static String EVENT_TYPE = "Events";
 	// sublime = 1, vs code = 2, eclipse = 3, intelliJ = 4,
 	// visual studio = 6, atom = 7
-	private int pluginId = 3;
+	public final static int PLUGIN_ID = 3;
+
+	// event type
+	private String type = EVENT_TYPE;
+	private int pluginId = PLUGIN_ID;
 	
 	// non-hardcoded attributes
-	private JsonObject source = new JsonObject();
-	private String data = "0"; // keystroke count
+	// file name to file metrics, serialized as the json source object
+	private Map<String, SoftwareCoFileMetrics> source = new HashMap<String, SoftwareCoFileMetrics>();
+	private String data = "0"; // keystroke count (sent as a string)
+	// keystroke count while typing, copied into "data" once the payload is completed
+	private transient int keystrokes = 0;
 	private long start;
 	private long end;
 	private SoftwareCoProject project;
 	private String version = "0.1.7";
+	// set once a flush has swapped this payload out of the live slot
+	private transient boolean sealed = false;
+	// set by the first recording, the window start is settled then
+	private transient boolean active = false;
+	// rough size of the serialized source map, used for the early flush threshold
+	private transient int estimatedSize = 0;
+	
+	// json overhead of one file entry in the source map, not counting the file name
+	private final static int FILE_ENTRY_SIZE = 160;
 	
 	public SoftwareCoKeystrokeCount() {
-		this.start = Math.round(System.currentTimeMillis() / 1000);
+		this(Math.round(System.currentTimeMillis() / 1000));
+	}
+	
+	/**
+	 * Create a payload continuing the window that started at windowStart
+	 * (in seconds), if the window is over by the time the first keystroke
+	 * is recorded the payload starts a new window then.
+	 */
+	public SoftwareCoKeystrokeCount(long windowStart) {
+		this.start = windowStart;
 		if (SoftwareCo.VERSION != null) {
 			this.version = SoftwareCo.VERSION;
 		}
 	}
 	
-	public void resetData() {
-        this.data = "0";
-        this.source = new JsonObject();
-        if (this.project != null) {
-            this.project.resetData();
-        }
-        this.start = Math.round(System.currentTimeMillis() / 1000);
-        this.end = 0L;
-    }
+	private void markActive() {
+		if (!active) {
+			active = true;
+			long now = Math.round(System.currentTimeMillis() / 1000);
+			if (now >= start + SoftwareCoFlushScheduler.WINDOW_SECONDS) {
+				start = now;
+			}
+		}
+	}
 	
-	public JsonObject getFileInfo(String fileName) {
-		if (source.has(fileName)) {
-			return source.get(fileName).getAsJsonObject();
-        }
+	/**
+	 * Mark this payload as taken by a flush. Since the record methods hold the
+	 * same lock, this waits for a recording in progress and no keystroke lands
+	 * here afterwards.
+	 */
+	public synchronized void seal() {
+		this.sealed = true;
+	}
+	
+	public synchronized boolean isSealed() {
+		return sealed;
+	}
+	
+	/**
+	 * The record methods return false if the payload has been sealed by a flush,
+	 * the caller then records into the project's new live payload.
+	 */
+	public synchronized boolean recordOpen(String fileName) {
+		if (sealed) {
+			return false;
+		}
+		markActive();
+		getFileInfo(fileName).incrementOpen();
+		return true;
+	}
+	
+	public synchronized boolean recordClose(String fileName) {
+		if (sealed) {
+			return false;
+		}
+		markActive();
+		getFileInfo(fileName).incrementClose();
+		return true;
+	}
+	
+	/**
+	 * Record a classified document change.
+	 * @param fileName the file that changed
+	 * @param adds single characters typed
+	 * @param pastes characters inserted by multi character inserts
+	 * @param deletes characters removed
+	 * @param keystrokes number of keystroke events
+	 * @param linesAdded number of line breaks inserted
+	 * @param linesRemoved number of line breaks removed
+	 * @param fileLength the document length after the change, or -1
+	 * @param lines the document line count after the change, or -1
+	 * @param currentTrack the current music track, or null
+	 * @return false if the payload has been sealed
+	 */
+	public synchronized boolean recordChange(String fileName, int adds, int pastes, int deletes, int keystrokes,
+			int linesAdded, int linesRemoved, int fileLength, int lines, String currentTrack) {
+		if (sealed) {
+			return false;
+		}
+		markActive();
+		SoftwareCoFileMetrics fileInfo = getFileInfo(fileName);
 		
-		// create one and return the one just created
-		JsonObject fileInfoData = new JsonObject();
-		fileInfoData.addProperty("keys", 0);
-		fileInfoData.addProperty("add", 0);
-        fileInfoData.addProperty("paste", 0);
-        fileInfoData.addProperty("open", 0);
-        fileInfoData.addProperty("close", 0);
-        fileInfoData.addProperty("delete", 0);
-        fileInfoData.addProperty("length", 0);
-        fileInfoData.addProperty("netkeys", 0);
-        // -1 to help identify when setting it for the 1st time
-        fileInfoData.addProperty("lines", -1);
-        fileInfoData.addProperty("linesAdded", 0);
-        fileInfoData.addProperty("linesRemoved", 0);
-        fileInfoData.addProperty("syntax", "");
-        fileInfoData.addProperty("trackInfo", "");
-        source.add(fileName, fileInfoData);
+		String trackInfo = fileInfo.getTrackInfo();
+		if ((trackInfo == null || trackInfo.length() == 0) && (currentTrack != null && currentTrack.length() > 0)) {
+			fileInfo.setTrackInfo(currentTrack);
+		}
+
+		if (adds > 0) {
+			fileInfo.addKeystrokes(adds);
+		}
+		if (pastes > 0) {
+			fileInfo.addPaste(pastes);
+		}
+		if (deletes > 0) {
+			fileInfo.deleteKeystrokes(deletes);
+		}
+		
+		// increment the data count
+		this.keystrokes += keystrokes;
+        
+        if (fileLength != -1) {
+        	fileInfo.setLength(fileLength);
+        }
+        
+        if (lines != -1) {
+        	fileInfo.setLines(lines);
+        }
         
-        return fileInfoData;
-    }
+        if (linesAdded > 0) {
+            fileInfo.addLinesAdded(linesAdded);
+        }
+        if (linesRemoved > 0) {
+            fileInfo.addLinesRemoved(linesRemoved);
+        }
+		return true;
+	}
+	
+	/**
+	 * Make sure we have the project name and directory info
+	 * @return false if the payload has been sealed
+	 */
+	public synchronized boolean updateProject(String projectName, String projectDirectory) {
+		if (sealed) {
+			return false;
+		}
+		if (project == null) {
+			project = new SoftwareCoProject( projectName, projectDirectory );
+		} else if (project.getName() == null || project.getName().equals("")) {
+			project.setDirectory(projectDirectory);
+			project.setName(projectName);
+		} else if ((project.getDirectory() == null || project.getDirectory().equals("")) && !projectDirectory.equals("")) {
+			project.setDirectory(projectDirectory);
+		}
+		return true;
+	}
+	
+	private SoftwareCoFileMetrics getFileInfo(String fileName) {
+		SoftwareCoFileMetrics fileInfo = source.get(fileName);
+		if (fileInfo == null) {
+			// create one and return the one just created
+			fileInfo = new SoftwareCoFileMetrics();
+			source.put(fileName, fileInfo);
+			estimatedSize += fileName.length() + FILE_ENTRY_SIZE;
+		}
+		return fileInfo;
+	}
 	
-	public boolean hasData() {
+	public synchronized boolean hasData() {
 		
 		//
 		// Check the file info data properties to see if any of those have data
 		// keys, open, close, paste
-
 		//
-		// Get the entry set of the file info [{fileName: {props...}}...]
-		Set<Entry<String, JsonElement>> fileInfoDataSet = this.source.entrySet();
-		for ( Entry<String, JsonElement> fileInfoData : fileInfoDataSet ) {
-			JsonObject fileinfoDataJsonObj = (JsonObject) fileInfoData.getValue();
-			// go through all of the different types of event vals and check if we have an incremented value
-			if (this.hasValueDataForProperty(fileinfoDataJsonObj, "add") ||
-					this.hasValueDataForProperty(fileinfoDataJsonObj, "open") ||
-					this.hasValueDataForProperty(fileinfoDataJsonObj, "close") ||
-					this.hasValueDataForProperty(fileinfoDataJsonObj, "paste") ||
-					this.hasValueDataForProperty(fileinfoDataJsonObj, "delete")) {
+		for ( SoftwareCoFileMetrics fileInfo : this.source.values() ) {
+			if (fileInfo.hasData()) {
 				return true;
 			}
 		}
@@ -94,29 +202,42 @@ public class SoftwareCoKeystrokeCount {
 		return false;
 	}
 	
-	private boolean hasValueDataForProperty(JsonObject fileInfoData, String property) {
-		try {
-	        int val = fileInfoData.getAsJsonPrimitive(property).getAsInt();
-	        if (val > 0) {
-	        		return true;
-	        }
-		} catch (Exception e) {}
-		return false;
+	public synchronized int getFileCount() {
+		return source.size();
 	}
 	
-	public String getSource() {
+	public synchronized int getEstimatedSize() {
+		return estimatedSize;
+	}
+	
+	public synchronized String getSource() {
 		return SoftwareCo.gson.toJson(source);
 	}
-	public String getData() {
-		return data;
+	
+	/**
+	 * The file metrics by file name, only read it once the payload is sealed
+	 */
+	public synchronized Map<String, SoftwareCoFileMetrics> getFileMetrics() {
+		return Collections.unmodifiableMap(source);
+	}
+	/**
+	 * Close out the payload before it's sent or stored offline. The keystroke
+	 * count is kept as a primitive while typing and only converted to the
+	 * backend's string "data" value here.
+	 * @param end
+	 */
+	public synchronized void complete(long end) {
+		this.end = end;
+		this.data = String.valueOf(this.keystrokes);
 	}
-	public void setData(String data) {
-		this.data = data;
+	
+	public synchronized String getData() {
+		return String.valueOf(keystrokes);
 	}
-	public long getStart() {
+	public synchronized long getStart() {
 		return start;
 	}
-	public void setStart(long start) {
+	public synchronized void setStart(long start) {
 		this.start = start;
 	}
 	public long getEnd() {
@@ -125,12 +246,9 @@ public class SoftwareCoKeystrokeCount {
 	public void setEnd(long end) {
 		this.end = end;
 	}
-	public SoftwareCoProject getProject() {
+	public synchronized SoftwareCoProject getProject() {
 		return project;
 	}
-	public void setProject(SoftwareCoProject project) {
-		this.project = project;
-	}
 	public String getType() {
 		return type;
 	}
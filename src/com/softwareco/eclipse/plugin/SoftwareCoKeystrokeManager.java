@@ -6,13 +6,23 @@ package com.softwareco.eclipse.plugin;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * 
+ * Holds the live keystroke payload per project. Keystrokes are recorded into
+ * the live payload while the flush swaps it for an empty one, so recording
+ * never waits on a send and no event lands in a payload after it was taken.
+ *
+ */
 public class SoftwareCoKeystrokeManager {
 
 	private static SoftwareCoKeystrokeManager instance = null;
 	
-	// KeystrokeCount cache metadata
-	List<KeystrokeCountWrapper> keystrokeCountWrapperList = new ArrayList<KeystrokeCountWrapper>();
+	// KeystrokeCount cache metadata, keyed by project name
+	private final Map<String, KeystrokeCountWrapper> keystrokeCountWrappers = new ConcurrentHashMap<String, KeystrokeCountWrapper>();
 
 	/**
 	 * Protected constructor to defeat instantiation
@@ -21,89 +31,92 @@ public class SoftwareCoKeystrokeManager {
 		//
 	}
 
-	public static SoftwareCoKeystrokeManager getInstance() {
+	public static synchronized SoftwareCoKeystrokeManager getInstance() {
 		if (instance == null) {
 			instance = new SoftwareCoKeystrokeManager();
 		}
 		return instance;
 	}
-	
-	public void addKeystrokeWrapperIfNoneExists(SoftwareCoProject project) {
-        if (this.getKeystrokeWrapper(project.getName()) == null) {
-            KeystrokeCountWrapper wrapper = new KeystrokeCountWrapper();
-            wrapper.setProjectName(project.getName());
-            keystrokeCountWrapperList.add(wrapper);
-        }
-    }
-
-    public void resetData(String projectName) {
-        for (KeystrokeCountWrapper wrapper : keystrokeCountWrapperList) {
-            if (wrapper.getProjectName() != null && projectName.equals(wrapper.getProjectName())) {
-                wrapper.getKeystrokeCount().resetData();
-                break;
-            }
-        }
-    }
 
+	/**
+	 * Returns the live keystroke payload for the project, creating it if this is
+	 * the first activity for the project.
+	 */
     public SoftwareCoKeystrokeCount getKeystrokeCount(String projectName) {
-        for (KeystrokeCountWrapper wrapper : keystrokeCountWrapperList) {
-            if (wrapper.getProjectName() != null && projectName.equals(wrapper.getProjectName())) {
-                return wrapper.getKeystrokeCount();
-            }
-        }
-        return null;
-    }
-
-    public void setKeystrokeCount(String projectName, SoftwareCoKeystrokeCount keystrokeCount) {
-        for (KeystrokeCountWrapper wrapper : keystrokeCountWrapperList) {
-            if (wrapper.getProjectName() != null && projectName.equals(wrapper.getProjectName())) {
-                wrapper.setKeystrokeCount(keystrokeCount);
-                return;
-            }
-        }
-
-        // didn't find it, time to create a wrapper
-        KeystrokeCountWrapper wrapper = new KeystrokeCountWrapper();
-        wrapper.setKeystrokeCount(keystrokeCount);
-        wrapper.setLastUpdateTime(System.currentTimeMillis());
-        wrapper.setProjectName(projectName);
-        keystrokeCountWrapperList.add(wrapper);
+        return this.getKeystrokeWrapper(projectName).getKeystrokeCount();
     }
 
     public KeystrokeCountWrapper getKeystrokeWrapper(String projectName) {
-        for (KeystrokeCountWrapper wrapper : keystrokeCountWrapperList) {
-            if (wrapper.getProjectName() != null && projectName.equals(wrapper.getProjectName())) {
-                return wrapper;
+        KeystrokeCountWrapper wrapper = keystrokeCountWrappers.get(projectName);
+        if (wrapper == null) {
+            // didn't find it, time to create a wrapper
+            KeystrokeCountWrapper newWrapper = new KeystrokeCountWrapper();
+            newWrapper.setLastUpdateTime(System.currentTimeMillis());
+            newWrapper.setProjectName(projectName);
+            wrapper = keystrokeCountWrappers.putIfAbsent(projectName, newWrapper);
+            if (wrapper == null) {
+                wrapper = newWrapper;
             }
         }
-        return null;
+        return wrapper;
     }
 
-    public void processKeystrokeCountForTermination() {
-        for (KeystrokeCountWrapper wrapper : keystrokeCountWrapperList) {
+    /**
+     * Swap out every live payload that has keystroke activity for the shutdown
+     * drain. The returned payloads are sealed and completed, ready to store.
+     */
+    public List<SoftwareCoKeystrokeCount> processKeystrokeCountForTermination() {
+        List<SoftwareCoKeystrokeCount> keystrokeCounts = new ArrayList<SoftwareCoKeystrokeCount>();
+        for (KeystrokeCountWrapper wrapper : keystrokeCountWrappers.values()) {
             // this will ensure we process the latest keystroke updates
             wrapper.setLastUpdateTime(0l);
+            if (wrapper.getKeystrokeCount().hasData()) {
+                SoftwareCoKeystrokeCount keystrokeCount = wrapper.swapKeystrokeCount();
+                keystrokeCount.complete(keystrokeCount.getStart() + SoftwareCoFlushScheduler.WINDOW_SECONDS);
+                keystrokeCounts.add(keystrokeCount);
+            }
         }
+        return keystrokeCounts;
     }
 
     public List<KeystrokeCountWrapper> getKeystrokeCountWrapperList() {
-        return this.keystrokeCountWrapperList;
+        return new ArrayList<KeystrokeCountWrapper>(keystrokeCountWrappers.values());
     }
 	
 	public class KeystrokeCountWrapper {
-		// KeystrokeCount cache metadata
-		protected SoftwareCoKeystrokeCount keystrokeCount;
+		// the live keystroke payload, swapped out on flush
+		protected final AtomicReference<SoftwareCoKeystrokeCount> keystrokeCount =
+				new AtomicReference<SoftwareCoKeystrokeCount>(new SoftwareCoKeystrokeCount());
 		protected String projectName;
-		protected long lastUpdateTime = 0; // in millis
+		protected volatile long lastUpdateTime = 0; // in millis
 		protected int currentTextLength = 0;
 		
 		public SoftwareCoKeystrokeCount getKeystrokeCount() {
-            return keystrokeCount;
+            return keystrokeCount.get();
         }
 
-        public void setKeystrokeCount(SoftwareCoKeystrokeCount keystrokeCount) {
-            this.keystrokeCount = keystrokeCount;
-        }
+		/**
+		 * Atomically replace the live payload with an empty one and return the
+		 * payload that was live. The returned payload is sealed, it won't take
+		 * any more keystrokes and is safe to serialize on the calling thread.
+		 * The new payload continues the old payload's window if it's still open.
+		 */
+		public SoftwareCoKeystrokeCount swapKeystrokeCount() {
+			long windowStart = keystrokeCount.get().getStart();
+			SoftwareCoKeystrokeCount current = keystrokeCount.getAndSet(new SoftwareCoKeystrokeCount(windowStart));
+			// waits for a recording that's in progress on the old payload
+			current.seal();
+			
+			// carry the project info over to the new live payload
+			SoftwareCoProject project = current.getProject();
+			if (project != null) {
+				SoftwareCoKeystrokeCount live = keystrokeCount.get();
+				while (!live.updateProject(project.getName(), project.getDirectory())) {
+					live = keystrokeCount.get();
+				}
+			}
+			return current;
+		}
 
         public long getLastUpdateTime() {
             return lastUpdateTime;
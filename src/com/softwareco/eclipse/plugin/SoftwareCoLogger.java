@@ -4,16 +4,101 @@
  */
 package com.softwareco.eclipse.plugin;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
 import org.eclipse.core.runtime.Status;
 
+/**
+ * 
+ * Logs to the Eclipse error log. Messages below the level threshold are
+ * discarded with a single comparison, the threshold defaults to INFO and can
+ * be set with the "software.logLevel" system property (DEBUG, INFO, WARN, ERROR).
+ * 
+ * Use the Supplier overloads, or check isDebugEnabled(), when building the
+ * message isn't free.
+ *
+ */
 public class SoftwareCoLogger {
+	
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	
+	private static volatile int threshold = parseLevel(System.getProperty("software.logLevel"), INFO);
+	
+	public static void setLevel(int level) {
+		threshold = level;
+	}
+	
+	public static int getLevel() {
+		return threshold;
+	}
+	
+	public static boolean isDebugEnabled() {
+		return threshold <= DEBUG;
+	}
+	
+	public static boolean isInfoEnabled() {
+		return threshold <= INFO;
+	}
+	
+	protected static int parseLevel(String levelName, int defaultLevel) {
+		if (levelName == null) {
+			return defaultLevel;
+		}
+		switch (levelName.trim().toUpperCase()) {
+			case "DEBUG":
+				return DEBUG;
+			case "INFO":
+				return INFO;
+			case "WARN":
+			case "WARNING":
+				return WARN;
+			case "ERROR":
+				return ERROR;
+			default:
+				return defaultLevel;
+		}
+	}
 
 	public static void info(String msg) {
-		logMessage(msg, Status.INFO, null);
+		if (threshold <= INFO) {
+			logMessage(msg, Status.INFO, null);
+		}
+	}
+	
+	public static void info(Supplier<String> msg) {
+		if (threshold <= INFO) {
+			logMessage(msg.get(), Status.INFO, null);
+		}
 	}
 
 	public static void debug(String msg) {
-		logMessage(msg, Status.INFO, null);
+		if (threshold <= DEBUG) {
+			logMessage(msg, Status.INFO, null);
+		}
+	}
+	
+	public static void debug(Supplier<String> msg) {
+		if (threshold <= DEBUG) {
+			logMessage(msg.get(), Status.INFO, null);
+		}
+	}
+	
+	/**
+	 * Log at info level at most once per the limiter's interval, the number of
+	 * suppressed messages is appended to the next one that's logged.
+	 */
+	public static void info(RateLimiter limiter, Supplier<String> msg) {
+		if (threshold <= INFO) {
+			int suppressed = limiter.tryAcquire();
+			if (suppressed >= 0) {
+				logMessage(withSuppressed(msg.get(), suppressed), Status.INFO, null);
+			}
+		}
 	}
 
 	public static void error(String msg) {
@@ -23,13 +108,45 @@ public class SoftwareCoLogger {
 	public static void error(String msg, Exception e) {
 		logMessage(msg, Status.ERROR, e);
 	}
+	
+	/**
+	 * Log at error level at most once per the limiter's interval.
+	 */
+	public static void error(RateLimiter limiter, String msg, Exception e) {
+		int suppressed = limiter.tryAcquire();
+		if (suppressed >= 0) {
+			logMessage(withSuppressed(msg, suppressed), Status.ERROR, e);
+		}
+	}
 
 	public static void warn(String msg, Exception e) {
-		logMessage(msg, Status.WARNING, e);
+		if (threshold <= WARN) {
+			logMessage(msg, Status.WARNING, e);
+		}
 	}
 
 	public static void warn(Exception e) {
-		logMessage("Warning", Status.WARNING, e);
+		if (threshold <= WARN) {
+			logMessage("Warning", Status.WARNING, e);
+		}
+	}
+	
+	private static String withSuppressed(String msg, int suppressed) {
+		if (suppressed > 0) {
+			return msg + " (" + suppressed + " similar messages suppressed)";
+		}
+		return msg;
+	}
+	
+	/**
+	 * Returns the text cut to maxLength characters, with the original length noted
+	 * when it was cut.
+	 */
+	public static String truncate(String text, int maxLength) {
+		if (text == null || text.length() <= maxLength) {
+			return text;
+		}
+		return text.substring(0, maxLength) + "... (" + text.length() + " chars)";
 	}
 
 	public static void logMessage(String msg, int level, Exception e) {
@@ -71,4 +188,34 @@ public class SoftwareCoLogger {
 			SoftwareCo.logInstance.log(new Status(level, SoftwareCo.PLUGIN_ID, Status.OK, msg, e));
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * 
+	 * Per call site rate limit, keep one in a static field next to the log call.
+	 *
+	 */
+	public static class RateLimiter {
+		
+		private final long intervalMillis;
+		private final AtomicLong nextAllowed = new AtomicLong(0);
+		private final AtomicInteger suppressed = new AtomicInteger(0);
+		
+		public RateLimiter(long intervalMillis) {
+			this.intervalMillis = intervalMillis;
+		}
+		
+		/**
+		 * Returns the number of messages suppressed since the last one that was
+		 * let through, or -1 if this one should be suppressed.
+		 */
+		public int tryAcquire() {
+			long now = System.currentTimeMillis();
+			long next = nextAllowed.get();
+			if (now >= next && nextAllowed.compareAndSet(next, now + intervalMillis)) {
+				return suppressed.getAndSet(0);
+			}
+			suppressed.incrementAndGet();
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,509 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * Append-only store for the payloads that couldn't be sent. Records are
+ * appended to the active segment file through one FileChannel, once the
+ * segment is over the size limit the next one is started. Each record is
+ * written as [length][crc32][bytes] so a record torn by a crash, or a
+ * corrupt one, is detected on replay and the rest of that segment is
+ * skipped instead of failing the whole batch. The record bytes are in the
+ * SoftwareCoPayloadCodec format, the dictionary it uses is kept per segment.
+ * 
+ * Replay commits the segments it has sent by moving a cursor (the last sent
+ * segment's sequence) that's persisted before the segments are deleted, so
+ * a segment that couldn't be deleted is never sent twice.
+ * 
+ * Every Eclipse instance on the machine shares the directory. Segments are
+ * created, sealed and committed holding the directory's lock file, and the
+ * writer keeps its active segment locked so other instances leave it alone.
+ * The cursor never moves past a segment that's still to be sent, whichever
+ * instance it belongs to. A replay holds the replay lock file from sealing
+ * the segments to committing them, so only one instance sends them.
+ *
+ */
+public class SoftwareCoOfflineJournal {
+
+	/**
+	 * When the active segment is forced to disk
+	 */
+	public enum FsyncPolicy {
+		// after every record
+		ALWAYS,
+		// when a segment is sealed and when the journal is closed
+		ON_ROTATE,
+		// left to the OS
+		NEVER
+	}
+
+	/**
+	 * Called for each valid record when a segment is read
+	 */
+	public interface RecordVisitor {
+		void onRecord(byte[] record) throws IOException;
+	}
+
+	private final static long SEGMENT_MAX_BYTES = Long.getLong("software.journalSegmentBytes", 1024 * 1024);
+	private final static FsyncPolicy FSYNC_POLICY = getFsyncPolicy(System.getProperty("software.journalFsync"));
+
+	// anything bigger is taken as a corrupt length
+	private final static int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+	private final static int HEADER_BYTES = 8;
+
+	private final static String SEGMENT_PREFIX = "data-";
+	private final static String SEGMENT_SUFFIX = ".seg";
+	private final static String CURSOR_FILE = "cursor";
+	private final static String LOCK_FILE = "journal.lock";
+	private final static String REPLAY_LOCK_FILE = "replay.lock";
+
+	// a file lock is held by the whole jvm, this keeps the journals of this jvm
+	// from taking the lock file at the same time
+	private final static Object DIR_MUTEX = new Object();
+
+	private final File dir;
+	private final long segmentMaxBytes;
+	private final FsyncPolicy fsyncPolicy;
+
+	private FileChannel channel;
+	// held on the active segment until it's closed
+	private FileLock activeLock;
+	// open while this journal holds the replay lock
+	private FileChannel replayChannel;
+	private File activeSegment;
+	private long activeSize = 0;
+	// dictionary of the active segment
+	private final SoftwareCoPayloadCodec.Encoder encoder = new SoftwareCoPayloadCodec.Encoder();
+
+	private long appendCount = 0;
+	private long skippedBytes = 0;
+
+	public SoftwareCoOfflineJournal(File dir) {
+		this(dir, SEGMENT_MAX_BYTES, FSYNC_POLICY);
+	}
+
+	public SoftwareCoOfflineJournal(File dir, long segmentMaxBytes, FsyncPolicy fsyncPolicy) {
+		this.dir = dir;
+		this.segmentMaxBytes = Math.max(HEADER_BYTES, segmentMaxBytes);
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	private static FsyncPolicy getFsyncPolicy(String name) {
+		if (name != null) {
+			try {
+				return FsyncPolicy.valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				SoftwareCoLogger.warn("Software.com: Unknown journal fsync policy '" + name + "', using ON_ROTATE", null);
+			}
+		}
+		return FsyncPolicy.ON_ROTATE;
+	}
+
+	/**
+	 * Append one encoded record to the active segment
+	 */
+	public synchronized void append(byte[] record) throws IOException {
+		if (channel == null) {
+			openNextSegment();
+		}
+		writeRecord(record);
+		if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+			channel.force(false);
+		}
+		rotateIfFull();
+	}
+	
+	/**
+	 * Append a keystroke payload in the compact format, with the dictionary
+	 * entries it adds to the active segment
+	 */
+	public synchronized void append(SoftwareCoKeystrokeCount keystrokeCount) throws IOException {
+		if (channel == null) {
+			openNextSegment();
+		}
+		try {
+			for (byte[] record : encoder.encode(keystrokeCount)) {
+				writeRecord(record);
+			}
+		} catch (IOException e) {
+			// the encoder may hold ids whose entries didn't make it, start over in a new segment
+			closeActiveSegment();
+			throw e;
+		}
+		if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+			channel.force(false);
+		}
+		rotateIfFull();
+	}
+	
+	private void writeRecord(byte[] record) throws IOException {
+		if (record.length == 0 || record.length > MAX_RECORD_BYTES) {
+			throw new IOException("Invalid journal record length " + record.length);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(record.length);
+		header.putInt((int) crc.getValue());
+		header.flip();
+
+		ByteBuffer[] buffers = new ByteBuffer[] { header, ByteBuffer.wrap(record) };
+		long remaining = HEADER_BYTES + record.length;
+		while (remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+		activeSize += HEADER_BYTES + record.length;
+		appendCount++;
+	}
+	
+	private void rotateIfFull() throws IOException {
+		if (activeSize >= segmentMaxBytes) {
+			closeActiveSegment();
+		}
+	}
+
+	/**
+	 * Seal the active segment so it can be replayed, returns every sealed
+	 * segment after the cursor oldest first. Appends after this go to a new
+	 * segment. Segments another instance is still appending to are left out,
+	 * committed segments that are still around are deleted.
+	 */
+	public synchronized List<File> sealSegments() throws IOException {
+		if (activeSize > 0) {
+			closeActiveSegment();
+		}
+		return this.underDirLock(() -> {
+			long committed = readCursor();
+			List<File> sealed = new ArrayList<File>();
+			List<File> leftover = new ArrayList<File>();
+			for (File segment : listSegments()) {
+				if (segment.equals(activeSegment)) {
+					continue;
+				}
+				if (getSequence(segment) <= committed) {
+					leftover.add(segment);
+				} else if (!isLockedElsewhere(segment)) {
+					sealed.add(segment);
+				}
+			}
+			deleteSegments(leftover);
+			return sealed;
+		});
+	}
+	
+	/**
+	 * Mark the segments as sent. The cursor is persisted first, then the
+	 * segments are deleted. The cursor stops short of the oldest segment
+	 * that isn't in the list, a sent segment above it that can't be deleted
+	 * is sent again.
+	 */
+	public synchronized void commit(final List<File> segments) throws IOException {
+		this.underDirLock(() -> {
+			long committed = readCursor();
+			long sequence = committed;
+			for (File segment : segments) {
+				sequence = Math.max(sequence, getSequence(segment));
+			}
+			for (File segment : listSegments()) {
+				long unsent = getSequence(segment);
+				if (unsent > committed && !segments.contains(segment)) {
+					sequence = Math.min(sequence, unsent - 1);
+					break;
+				}
+			}
+			if (sequence > committed) {
+				writeCursor(sequence);
+			}
+			deleteSegments(segments);
+			return null;
+		});
+	}
+
+	/**
+	 * Take the replay lock without waiting, returns false if another instance
+	 * (or a replay of this journal) holds it. Segments should only be sealed,
+	 * sent and committed while holding it.
+	 */
+	public synchronized boolean tryLockReplay() throws IOException {
+		if (replayChannel != null) {
+			return false;
+		}
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		FileChannel lockChannel = FileChannel.open(new File(dir, REPLAY_LOCK_FILE).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock;
+		try {
+			lock = lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// held by another journal of this jvm
+			lock = null;
+		} catch (IOException | RuntimeException e) {
+			lockChannel.close();
+			throw e;
+		}
+		if (lock == null) {
+			lockChannel.close();
+			return false;
+		}
+		replayChannel = lockChannel;
+		return true;
+	}
+	
+	/**
+	 * Release the replay lock taken by tryLockReplay
+	 */
+	public synchronized void unlockReplay() {
+		if (replayChannel == null) {
+			return;
+		}
+		try {
+			// closing the channel releases its lock
+			replayChannel.close();
+		} catch (IOException e) {
+			SoftwareCoLogger.error("Software.com: Unable to release the offline journal replay lock.", e);
+		} finally {
+			replayChannel = null;
+		}
+	}
+
+	/**
+	 * Read the valid records of a segment in order. Reading stops at the first
+	 * torn or corrupt record, what follows it in the segment is skipped.
+	 */
+	public void readSegment(File segment, RecordVisitor visitor) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+		long validBytes = 0;
+		try {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					// clean end of the segment
+					return;
+				}
+				if (length <= 0 || length > MAX_RECORD_BYTES) {
+					break;
+				}
+				int checksum = in.readInt();
+				byte[] record = new byte[length];
+				in.readFully(record);
+
+				CRC32 crc = new CRC32();
+				crc.update(record, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				validBytes += HEADER_BYTES + length;
+				visitor.onRecord(record);
+			}
+		} catch (EOFException e) {
+			// torn record at the end of the segment
+		} finally {
+			in.close();
+		}
+
+		long skipped = segment.length() - validBytes;
+		synchronized (this) {
+			skippedBytes += skipped;
+		}
+		SoftwareCoLogger.warn("Software.com: Skipped " + skipped + " corrupt bytes at the end of journal segment "
+				+ segment.getName(), null);
+	}
+
+	private void deleteSegments(List<File> segments) {
+		for (File segment : segments) {
+			if (!segment.equals(activeSegment) && segment.exists() && !segment.delete()) {
+				SoftwareCoLogger.warn("Software.com: Unable to delete journal segment " + segment.getName(), null);
+			}
+		}
+	}
+
+	/**
+	 * Force and close the active segment, the next append starts a new one
+	 */
+	public synchronized void close() {
+		try {
+			closeActiveSegment();
+		} catch (IOException e) {
+			SoftwareCoLogger.error("Software.com: Unable to close the offline journal.", e);
+		}
+	}
+
+	private void openNextSegment() throws IOException {
+		this.underDirLock(() -> {
+			// always start a fresh segment, the last one may end in a torn record,
+			// and never reuse a sequence the cursor has already passed. Other
+			// instances add segments too, so it's worked out every time.
+			long sequence = readCursor() + 1;
+			for (File segment : listSegments()) {
+				sequence = Math.max(sequence, getSequence(segment) + 1);
+			}
+			File segment = new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+			FileChannel newChannel = FileChannel.open(segment.toPath(),
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			try {
+				// nobody else can have the new file yet
+				activeLock = newChannel.lock();
+			} catch (IOException | RuntimeException e) {
+				newChannel.close();
+				throw e;
+			}
+			channel = newChannel;
+			activeSegment = segment;
+			activeSize = 0;
+			return null;
+		});
+		encoder.reset();
+	}
+
+	private void closeActiveSegment() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			if (fsyncPolicy != FsyncPolicy.NEVER) {
+				channel.force(false);
+			}
+		} finally {
+			// closing the channel releases its lock
+			channel.close();
+			channel = null;
+			activeLock = null;
+			activeSegment = null;
+			activeSize = 0;
+		}
+	}
+
+	/**
+	 * Run the action holding the directory's lock file, the journals of other
+	 * instances wait for it. The os releases the lock if an instance dies.
+	 */
+	private <T> T underDirLock(DirAction<T> action) throws IOException {
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		synchronized (DIR_MUTEX) {
+			FileChannel lockChannel = FileChannel.open(new File(dir, LOCK_FILE).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				lockChannel.lock();
+				return action.run();
+			} finally {
+				lockChannel.close();
+			}
+		}
+	}
+
+	private interface DirAction<T> {
+		T run() throws IOException;
+	}
+
+	/**
+	 * True if another journal holds the segment's lock, it's still being appended to
+	 */
+	private static boolean isLockedElsewhere(File segment) throws IOException {
+		FileChannel segmentChannel = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+		try {
+			FileLock lock = segmentChannel.tryLock(0, Long.MAX_VALUE, true);
+			if (lock == null) {
+				return true;
+			}
+			lock.release();
+			return false;
+		} catch (OverlappingFileLockException e) {
+			// held by another journal of this jvm
+			return true;
+		} finally {
+			segmentChannel.close();
+		}
+	}
+	
+	private long readCursor() throws IOException {
+		File cursor = new File(dir, CURSOR_FILE);
+		if (!cursor.exists()) {
+			return -1;
+		}
+		String content = new String(Files.readAllBytes(cursor.toPath()), StandardCharsets.UTF_8).trim();
+		try {
+			return Long.parseLong(content);
+		} catch (NumberFormatException e) {
+			// replaying twice beats losing data
+			SoftwareCoLogger.warn("Software.com: Ignoring the invalid journal cursor '" + content + "'", null);
+			return -1;
+		}
+	}
+	
+	/**
+	 * Write the cursor atomically, a crash leaves either the old or the new cursor
+	 */
+	private void writeCursor(long sequence) throws IOException {
+		SoftwareCoUtils.writeFileAtomically(new File(dir, CURSOR_FILE),
+				Long.toString(sequence).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private List<File> listSegments() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+		List<File> segments = new ArrayList<File>();
+		for (File file : files) {
+			if (getSequence(file) >= 0) {
+				segments.add(file);
+			}
+		}
+		// the zero padded sequence sorts by name
+		File[] sorted = segments.toArray(new File[segments.size()]);
+		Arrays.sort(sorted);
+		return Arrays.asList(sorted);
+	}
+
+	private static long getSequence(File file) {
+		String name = file.getName();
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public synchronized long getAppendCount() {
+		return appendCount;
+	}
+
+	public synchronized long getSkippedBytes() {
+		return skippedBytes;
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ *
+ * Compact on-disk format for the offline journal's records. The first byte of
+ * a record is its type:
+ *
+ * JSON       a payload stored as its json text
+ * KEYSTROKES a keystroke payload with varint counters, zero file metrics
+ *            omitted and strings replaced by dictionary ids
+ * DICTIONARY a dictionary entry (id and string), written to the segment
+ *            before the first record using it
+ *
+ * The dictionary (file paths, project name and directory, version, syntax,
+ * track info) is per segment, so every segment can be read on its own. Id 0
+ * stands for null and id 1 for the empty string, so a field the json leaves
+ * out stays out and an empty one stays empty. The api's json is only
+ * produced again when the records are uploaded.
+ *
+ */
+public class SoftwareCoPayloadCodec {
+
+	public final static byte TYPE_JSON = 1;
+	public final static byte TYPE_KEYSTROKES = 2;
+	public final static byte TYPE_DICTIONARY = 3;
+
+	// file metrics in the order they're serialized, a bit per field marks the ones stored
+	private final static String[] FILE_FIELDS = { "keys", "add", "paste", "open", "close", "delete", "length",
+			"netkeys", "lines", "linesAdded", "linesRemoved", "syntax", "trackInfo" };
+	private final static int SYNTAX_BIT = 11;
+	private final static int TRACK_INFO_BIT = 12;
+
+	private final static int NULL_ID = 0;
+	private final static int EMPTY_ID = 1;
+	private final static int FIRST_DICTIONARY_ID = 2;
+
+	/**
+	 * Thrown for a record that can't be decoded, the record is skipped
+	 */
+	public static class CorruptRecordException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public CorruptRecordException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Record holding a payload that is already json
+	 */
+	public static byte[] encodeJson(String json) {
+		byte[] text = json.getBytes(StandardCharsets.UTF_8);
+		byte[] record = new byte[text.length + 1];
+		record[0] = TYPE_JSON;
+		System.arraycopy(text, 0, record, 1, text.length);
+		return record;
+	}
+
+	/**
+	 * Encodes keystroke payloads for one segment, call reset when a new segment is started
+	 */
+	public static class Encoder {
+		private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+		public void reset() {
+			dictionary.clear();
+		}
+
+		/**
+		 * Returns the records for the payload, the dictionary entries it adds come first
+		 */
+		public List<byte[]> encode(SoftwareCoKeystrokeCount keystrokeCount) {
+			List<byte[]> records = new ArrayList<byte[]>();
+			RecordBuffer out = new RecordBuffer(TYPE_KEYSTROKES);
+
+			synchronized (keystrokeCount) {
+				long start = keystrokeCount.getStart();
+				out.writeVarLong(start);
+				out.writeVarLong(keystrokeCount.getEnd() - start);
+				out.writeVarLong(Long.parseLong(keystrokeCount.getData()));
+
+				SoftwareCoProject project = keystrokeCount.getProject();
+				out.writeVarLong((project != null) ? 1 : 0);
+				if (project != null) {
+					out.writeVarLong(getId(project.getName(), records));
+					out.writeVarLong(getId(project.getDirectory(), records));
+				}
+				out.writeVarLong(getId(keystrokeCount.getVersion(), records));
+
+				Map<String, SoftwareCoFileMetrics> source = keystrokeCount.getFileMetrics();
+				out.writeVarLong(source.size());
+				for (Map.Entry<String, SoftwareCoFileMetrics> entry : source.entrySet()) {
+					out.writeVarLong(getId(entry.getKey(), records));
+					writeFileMetrics(out, entry.getValue(), records);
+				}
+			}
+
+			records.add(out.toByteArray());
+			return records;
+		}
+
+		private void writeFileMetrics(RecordBuffer out, SoftwareCoFileMetrics metrics, List<byte[]> records) {
+			int[] values = { metrics.getKeys(), metrics.getAdd(), metrics.getPaste(), metrics.getOpen(),
+					metrics.getClose(), metrics.getDelete(), metrics.getLength(), metrics.getNetkeys(),
+					metrics.getLines(), metrics.getLinesAdded(), metrics.getLinesRemoved(),
+					getId(metrics.getSyntax(), records), getId(metrics.getTrackInfo(), records) };
+			int present = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != getDefaultValue(i)) {
+					present |= (1 << i);
+				}
+			}
+			out.writeVarLong(present);
+			for (int i = 0; i < values.length; i++) {
+				if ((present & (1 << i)) != 0) {
+					// netkeys and lines can be negative
+					out.writeVarLong(zigZag(values[i]));
+				}
+			}
+		}
+
+		/**
+		 * Dictionary id of the string, NULL_ID or EMPTY_ID for null and empty.
+		 * A new string gets the next id and its entry is added to the records.
+		 */
+		private int getId(String value, List<byte[]> records) {
+			if (value == null) {
+				return NULL_ID;
+			} else if (value.length() == 0) {
+				return EMPTY_ID;
+			}
+			Integer id = dictionary.get(value);
+			if (id == null) {
+				id = dictionary.size() + FIRST_DICTIONARY_ID;
+				dictionary.put(value, id);
+				RecordBuffer entry = new RecordBuffer(TYPE_DICTIONARY);
+				entry.writeVarLong(id);
+				entry.writeString(value);
+				records.add(entry.toByteArray());
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Turns one segment's records back into the api's json, create one per segment
+	 */
+	public static class Decoder {
+		private final Map<Long, String> dictionary = new HashMap<Long, String>();
+
+		/**
+		 * Write the record's payload to the writer, dictionary entries are
+		 * only remembered. Throws CorruptRecordException if the record can't
+		 * be decoded, nothing has been written then.
+		 */
+		public void transcode(byte[] record, JsonWriter writer) throws IOException {
+			if (record.length == 0) {
+				throw new CorruptRecordException("Empty journal record");
+			}
+			switch (record[0]) {
+				case TYPE_JSON:
+					writer.jsonValue(new String(record, 1, record.length - 1, StandardCharsets.UTF_8));
+					break;
+				case TYPE_DICTIONARY:
+					RecordReader entry = new RecordReader(record);
+					long id = entry.readVarLong();
+					dictionary.put(id, entry.readRemainingString());
+					break;
+				case TYPE_KEYSTROKES:
+					writeKeystrokes(decodeKeystrokes(new RecordReader(record)), writer);
+					break;
+				default:
+					throw new CorruptRecordException("Unknown journal record type " + record[0]);
+			}
+		}
+
+		/**
+		 * Read the whole payload before writing so a bad record leaves the writer untouched
+		 */
+		private Keystrokes decodeKeystrokes(RecordReader in) throws IOException {
+			Keystrokes payload = new Keystrokes();
+			payload.start = in.readVarLong();
+			payload.end = payload.start + in.readVarLong();
+			payload.data = in.readVarLong();
+			if (in.readVarLong() != 0) {
+				payload.hasProject = true;
+				payload.projectName = lookup(in.readVarLong());
+				payload.projectDirectory = lookup(in.readVarLong());
+			}
+			payload.version = lookup(in.readVarLong());
+
+			long fileCount = in.readVarLong();
+			for (long i = 0; i < fileCount; i++) {
+				String fileName = lookup(in.readVarLong());
+				int present = (int) in.readVarLong();
+				long[] values = new long[FILE_FIELDS.length];
+				for (int bit = 0; bit < FILE_FIELDS.length; bit++) {
+					values[bit] = ((present & (1 << bit)) != 0) ? unZigZag(in.readVarLong()) : getDefaultValue(bit);
+				}
+				payload.fileNames.add(fileName);
+				payload.fileValues.add(values);
+				payload.fileSyntaxes.add(lookup(values[SYNTAX_BIT]));
+				payload.fileTrackInfos.add(lookup(values[TRACK_INFO_BIT]));
+			}
+			if (in.hasRemaining()) {
+				throw new CorruptRecordException("Trailing bytes in a keystroke record");
+			}
+			return payload;
+		}
+
+		private void writeKeystrokes(Keystrokes payload, JsonWriter writer) throws IOException {
+			// same field order as the gson serialization of SoftwareCoKeystrokeCount
+			writer.beginObject();
+			writer.name("type").value(SoftwareCoKeystrokeCount.EVENT_TYPE);
+			writer.name("pluginId").value(SoftwareCoKeystrokeCount.PLUGIN_ID);
+			writer.name("source").beginObject();
+			for (int i = 0; i < payload.fileNames.size(); i++) {
+				long[] values = payload.fileValues.get(i);
+				writer.name(payload.fileNames.get(i)).beginObject();
+				for (int field = 0; field < FILE_FIELDS.length; field++) {
+					if (field == SYNTAX_BIT) {
+						writeString(writer, FILE_FIELDS[field], payload.fileSyntaxes.get(i));
+					} else if (field == TRACK_INFO_BIT) {
+						writeString(writer, FILE_FIELDS[field], payload.fileTrackInfos.get(i));
+					} else {
+						writer.name(FILE_FIELDS[field]).value(values[field]);
+					}
+				}
+				writer.endObject();
+			}
+			writer.endObject();
+			writer.name("data").value(String.valueOf(payload.data));
+			writer.name("start").value(payload.start);
+			writer.name("end").value(payload.end);
+			if (payload.hasProject) {
+				writer.name("project").beginObject();
+				writeString(writer, "name", payload.projectName);
+				writeString(writer, "directory", payload.projectDirectory);
+				writer.endObject();
+			}
+			writeString(writer, "version", payload.version);
+			writer.endObject();
+		}
+
+		/**
+		 * Gson leaves null fields out
+		 */
+		private static void writeString(JsonWriter writer, String name, String value) throws IOException {
+			if (value != null) {
+				writer.name(name).value(value);
+			}
+		}
+
+		private String lookup(long id) throws IOException {
+			if (id == NULL_ID) {
+				return null;
+			} else if (id == EMPTY_ID) {
+				return "";
+			}
+			String value = dictionary.get(id);
+			if (value == null) {
+				throw new CorruptRecordException("Unknown journal dictionary id " + id);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * The value a file metric isn't stored for, the file metrics' initial
+	 * value for the strings
+	 */
+	private static long getDefaultValue(int field) {
+		return (field == SYNTAX_BIT || field == TRACK_INFO_BIT) ? EMPTY_ID : 0;
+	}
+
+	private static class Keystrokes {
+		long start;
+		long end;
+		long data;
+		boolean hasProject;
+		String projectName;
+		String projectDirectory;
+		String version;
+		List<String> fileNames = new ArrayList<String>();
+		List<long[]> fileValues = new ArrayList<long[]>();
+		List<String> fileSyntaxes = new ArrayList<String>();
+		List<String> fileTrackInfos = new ArrayList<String>();
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer(byte type) {
+			super(64);
+			write(type);
+		}
+
+		void writeString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			write(bytes, 0, bytes.length);
+		}
+
+		void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+	}
+
+	private static class RecordReader {
+		private final byte[] record;
+		// skip the type byte
+		private int pos = 1;
+
+		RecordReader(byte[] record) {
+			this.record = record;
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (pos >= record.length) {
+					throw new CorruptRecordException("Truncated journal record");
+				}
+				byte b = record[pos++];
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new CorruptRecordException("Malformed varint in a journal record");
+		}
+
+		String readRemainingString() {
+			String value = new String(record, pos, record.length - pos, StandardCharsets.UTF_8);
+			pos = record.length;
+			return value;
+		}
+
+		boolean hasRemaining() {
+			return pos < record.length;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * 
+ * Resolves the workspace project a file belongs to. The open projects are
+ * indexed in a trie of their location path segments, a lookup walks the file's
+ * path and returns the project with the longest matching location, so nested
+ * projects resolve to the innermost one. The index is rebuilt when a project
+ * is created, deleted, opened, closed or moved.
+ *
+ */
+public class SoftwareCoProjectResolver implements IResourceChangeListener {
+	
+	private static SoftwareCoProjectResolver instance = null;
+	
+	// project level changes that affect the index
+	private static final int PROJECT_CHANGE_FLAGS = IResourceDelta.OPEN
+			| IResourceDelta.MOVED_FROM | IResourceDelta.MOVED_TO | IResourceDelta.DESCRIPTION;
+	
+	private volatile PathNode root = null;
+	// bumped every time the index is rebuilt, bindings compare it to know when to re-resolve
+	private volatile int generation = 0;
+
+	/**
+	 * Protected constructor to defeat instantiation
+	 */
+	protected SoftwareCoProjectResolver() {
+		//
+	}
+	
+	public static synchronized SoftwareCoProjectResolver getInstance() {
+		if (instance == null) {
+			instance = new SoftwareCoProjectResolver();
+		}
+		return instance;
+	}
+	
+	public int getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Returns the project with the longest location prefix of the file path, or
+	 * null if the file isn't inside an open project.
+	 * @param fileName
+	 */
+	public IProject resolve(String fileName) {
+		if (fileName == null) {
+			return null;
+		}
+		PathNode node = root;
+		if (node == null) {
+			node = this.rebuild();
+		}
+		
+		IProject project = node.project;
+		int len = fileName.length();
+		int segStart = 0;
+		boolean firstSegment = true;
+		while (segStart < len) {
+			int segEnd = segStart;
+			while (segEnd < len && !isSeparator(fileName.charAt(segEnd))) {
+				segEnd++;
+			}
+			if (segEnd > segStart) {
+				String segment = normalizeSegment(fileName.substring(segStart, segEnd), firstSegment);
+				firstSegment = false;
+				node = node.children.get(segment);
+				if (node == null) {
+					break;
+				}
+				if (node.project != null) {
+					project = node.project;
+				}
+			}
+			segStart = segEnd + 1;
+		}
+		return project;
+	}
+	
+	/**
+	 * Build a new index of the open workspace projects and swap it in.
+	 */
+	protected synchronized PathNode rebuild() {
+		return this.rebuild(ResourcesPlugin.getWorkspace().getRoot().getProjects());
+	}
+	
+	/**
+	 * Build a new index of the given projects and swap it in, only the open
+	 * ones are indexed.
+	 * @param projects
+	 */
+	protected synchronized PathNode rebuild(IProject[] projects) {
+		PathNode newRoot = new PathNode();
+		for (IProject project : projects) {
+			if (!project.isOpen()) {
+				continue;
+			}
+			IPath locationPath = project.getLocation();
+			if (locationPath != null) {
+				this.add(newRoot, locationPath.toString(), project);
+			}
+		}
+		root = newRoot;
+		generation++;
+		return newRoot;
+	}
+	
+	private void add(PathNode node, String location, IProject project) {
+		boolean firstSegment = true;
+		for (String segment : location.split("[/\\\\]")) {
+			if (segment.length() == 0) {
+				continue;
+			}
+			segment = normalizeSegment(segment, firstSegment);
+			firstSegment = false;
+			PathNode child = node.children.get(segment);
+			if (child == null) {
+				child = new PathNode();
+				node.children.put(segment, child);
+			}
+			node = child;
+		}
+		node.project = project;
+	}
+	
+	private static boolean isSeparator(char c) {
+		return c == '/' || c == '\\';
+	}
+	
+	private static String normalizeSegment(String segment, boolean firstSegment) {
+		// windows drive letters show up as "C:" in locations and "c:" in some uris
+		if (firstSegment && segment.length() == 2 && segment.charAt(1) == ':') {
+			return segment.toLowerCase();
+		}
+		return segment;
+	}
+
+	@Override
+	public void resourceChanged(IResourceChangeEvent event) {
+		IResourceDelta delta = event.getDelta();
+		if (delta == null) {
+			return;
+		}
+		for (IResourceDelta child : delta.getAffectedChildren()) {
+			if (child.getResource() == null || child.getResource().getType() != IResource.PROJECT) {
+				continue;
+			}
+			int kind = child.getKind();
+			if (kind == IResourceDelta.ADDED || kind == IResourceDelta.REMOVED
+					|| (child.getFlags() & PROJECT_CHANGE_FLAGS) != 0) {
+				SoftwareCoLogger.debug("Software.com: workspace projects changed, rebuilding the project index");
+				this.rebuild();
+				return;
+			}
+		}
+	}
+	
+	private static class PathNode {
+		private final Map<String, PathNode> children = new HashMap<String, PathNode>();
+		private IProject project;
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * Limits how many retries each api endpoint can use per time window so a
+ * failing endpoint can't multiply its own traffic, and computes the
+ * exponential backoff (with full jitter) between attempts.
+ *
+ */
+public class SoftwareCoRetryBudget {
+
+	private final int maxRetriesPerWindow;
+	private final long windowMillis;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+
+	private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+	public SoftwareCoRetryBudget(int maxRetriesPerWindow, long windowMillis, long baseDelayMillis, long maxDelayMillis) {
+		this.maxRetriesPerWindow = maxRetriesPerWindow;
+		this.windowMillis = windowMillis;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Take a retry from the endpoint's budget, returns false if it's spent for the current window
+	 */
+	public boolean tryAcquire(String endpoint) {
+		Window window = windows.get(endpoint);
+		if (window == null) {
+			Window newWindow = new Window();
+			window = windows.putIfAbsent(endpoint, newWindow);
+			if (window == null) {
+				window = newWindow;
+			}
+		}
+		return window.tryAcquire();
+	}
+
+	/**
+	 * Delay before the given retry (1 based), a random value up to the exponential backoff
+	 */
+	public long getBackoffMillis(int retry) {
+		long ceiling = baseDelayMillis << Math.min(retry - 1, 16);
+		ceiling = Math.min(ceiling, maxDelayMillis);
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/**
+	 * The endpoint a request url is budgeted under, the path without the query
+	 */
+	public static String getEndpoint(String path) {
+		if (path == null) {
+			return "";
+		}
+		int queryIdx = path.indexOf('?');
+		return (queryIdx >= 0) ? path.substring(0, queryIdx) : path;
+	}
+
+	private class Window {
+		private long start = 0;
+		private int used = 0;
+
+		synchronized boolean tryAcquire() {
+			long now = System.currentTimeMillis();
+			if (now - start >= windowMillis) {
+				start = now;
+				used = 0;
+			}
+			if (used < maxRetriesPerWindow) {
+				used++;
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -5,23 +5,27 @@
 package com.softwareco.eclipse.plugin;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
@@ -33,6 +37,8 @@ import org.eclipse.ui.PartInitException;
 import org.eclipse.ui.PlatformUI;
 
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import com.softwareco.eclipse.plugin.SoftwareCoUtils.HttpResponseInfo;
 
 /**
  * 
@@ -50,7 +56,46 @@ public class SoftwareCoSessionManager {
 	
 	private static long lastTimeAuthenticated = 0;
 	
-	private Timer authenticationCheckTimer;
+	private ScheduledFuture<?> authenticationCheck;
+	
+	// cached session.json, shared with the other Software.com editors
+	private final static SoftwareCoSessionStore sessionStore = new SoftwareCoSessionStore(new File(getSoftwareSessionFile()));
+	
+	// upper bound for one /data/batch request when replaying the journal
+	private final static long REPLAY_BATCH_BYTES = Long.getLong("software.replayBatchBytes", 2 * 1024 * 1024);
+	
+	// the directory the offline data lives in, ~/.software
+	private final File softwareDir;
+	// payloads waiting to be sent, replaces the old data.json file
+	private final SoftwareCoOfflineJournal offlineJournal;
+	
+	// the replay that's running, callers share it rather than starting another
+	private final Object offlineReplayLock = new Object();
+	private CompletableFuture<Boolean> offlineReplay;
+	
+	//
+	// Response fields each call reads, everything else in the response is skipped
+	//
+	private final static Set<String> STATUS_ONLY = Collections.emptySet();
+	private final static Set<String> TOKEN_FIELDS = new HashSet<String>(Arrays.asList("jwt", "user"));
+	private final static Set<String> KPM_SESSION_FIELDS = new HashSet<String>(Arrays.asList(
+			"inFlow", "currentSessionGoalPercent", "currentSessionKpm", "currentSessionMinutes"));
+	
+	/**
+	 * Protected constructor to defeat instantiation
+	 */
+	protected SoftwareCoSessionManager() {
+		this(new File(getSoftwareDir()));
+	}
+	
+	/**
+	 * Session manager that keeps its offline data in the given directory
+	 * @param softwareDir
+	 */
+	protected SoftwareCoSessionManager(File softwareDir) {
+		this.softwareDir = softwareDir;
+		this.offlineJournal = new SoftwareCoOfflineJournal(new File(softwareDir, "journal"));
+	}
 	
 	public static SoftwareCoSessionManager getInstance() {
 		if (instance == null) {
@@ -87,146 +132,230 @@ public class SoftwareCoSessionManager {
 	}
 
 	private String getSoftwareDataStoreFile() {
-	    String file = getSoftwareDir();
-	    if (SoftwareCo.isWindows()) {
-	        file += "\\data.json";
-	    } else {
-	        file += "/data.json";
-	    }
-	    return file;
+	    return new File(softwareDir, "data.json").getAbsolutePath();
 	}
 
 	/**
 	 * User session will have...
 	 * { user: user, jwt: jwt }
 	 */
-	private static boolean isAuthenticated() {
+	private static CompletableFuture<Boolean> isAuthenticated() {
 	    String tokenVal = getItem("token");
 	    if (tokenVal == null) {
-	        return false;
+	        return CompletableFuture.completedFuture(false);
 	    }
 	    
-	    boolean isOk = SoftwareCoUtils.getResponseInfo(makeApiCall("/users/ping/", false, null)).isOk;
-	    if (!isOk) {
-	    	lastTimeAuthenticated = -1;
-	    } else {
-	    	lastTimeAuthenticated = System.currentTimeMillis();
-	    }
-	    if (!isOk) {
-	    	// update the status bar with Sign Up message
-	    	SoftwareCoUtils.setStatusLineMessage("⚠️Software.com", "Click to log in to Software.com");
-	    }
-	    return isOk;
+	    return makeApiCallAsync("/users/ping/", false, null, STATUS_ONLY).thenApply(responseInfo -> {
+		    boolean isOk = responseInfo.isOk;
+		    if (!isOk) {
+		    	lastTimeAuthenticated = -1;
+		    } else {
+		    	lastTimeAuthenticated = System.currentTimeMillis();
+		    }
+		    if (!isOk) {
+		    	// update the status bar with Sign Up message
+		    	SoftwareCoUtils.setStatusLineMessage("⚠️Software.com", "Click to log in to Software.com");
+		    }
+		    return isOk;
+	    });
 	}
 	
-	private boolean isServerOnline() {
-		return SoftwareCoUtils.getResponseInfo(makeApiCall("/ping", false, null)).isOk;
+	private CompletableFuture<Boolean> isServerOnline() {
+		return makeApiCallAsync("/ping", false, null, STATUS_ONLY).thenApply(responseInfo -> responseInfo.isOk);
 	}
 
 	public void storePayload(String payload) {
 		if (payload == null || payload.length() == 0) {
 			return;
 		}
-		if (SoftwareCo.isWindows()) {
-			payload += "\r\n";
-		} else {
-			payload += "\n";
+		try {
+			offlineJournal.append(SoftwareCoPayloadCodec.encodeJson(payload));
+		} catch (Exception e) {
+			SoftwareCoLogger.error("Software.com: Error appending to the Software offline journal", e);
 		}
-		String dataStoreFile = getSoftwareDataStoreFile();
-		File f = new File(dataStoreFile);
+	}
+	
+	/**
+	 * Store a keystroke payload in the journal's compact format, it's turned
+	 * into json when it's uploaded
+	 */
+	public void storeKeystrokeData(SoftwareCoKeystrokeCount keystrokeCount) {
 		try {
-			Writer output;
-			output = new BufferedWriter(new FileWriter(f, true));  //clears file every time
-			output.append(payload);
-			output.close();
+			offlineJournal.append(keystrokeCount);
 		} catch (Exception e) {
-			SoftwareCoLogger.error("Software.com: Error appending to the Software data store file", e);
+			SoftwareCoLogger.error("Software.com: Error appending to the Software offline journal", e);
 		}
 	}
+	
+	/**
+	 * Close the offline journal's active segment, the next payload reopens it
+	 */
+	public void closeOfflineData() {
+		offlineJournal.close();
+	}
 
-	public void sendOfflineData() {
-	    String dataStoreFile = getSoftwareDataStoreFile();
-	    File f = new File(dataStoreFile);
-
-	    if (f.exists()) {
-	    		// JsonArray jsonArray = new JsonArray();
-	    		StringBuffer sb = new StringBuffer();
-		    	try {
-		    		FileInputStream fis = new FileInputStream(f);
-		    		 
-		    		//Construct BufferedReader from InputStreamReader
-		    		BufferedReader br = new BufferedReader(new InputStreamReader(fis));
-		    	 
-		    		String line = null;
-		    		while ((line = br.readLine()) != null) {
-		    			if (line.length() > 0) {
-		    				sb.append(line).append(",");
-		    			}
-		    		}
-		    	 
-		    		br.close();
-		    		
-		    		if (sb.length() > 0) {
-		    			String payloads = sb.toString();
-		    			payloads = payloads.substring(0, payloads.lastIndexOf(","));
-		    			payloads = "[" + payloads + "]";
-			    		if (SoftwareCoUtils.getResponseInfo(makeApiCall("/data/batch", true, payloads)).isOk) {
-			    		
-				    		// delete the file
-				    		this.deleteFile(dataStoreFile);
-			    		}
-		    		} else {
-		    			SoftwareCoLogger.info("Software.com: No offline data to send");
-		    		}
-		    	} catch (Exception e) {
-		    		SoftwareCoLogger.error("Software.com: Error trying to read and send offline data.", e);
-		    	}
-	    }
+	/**
+	 * Send the sealed journal segments in size bounded batches, the returned
+	 * future completes with true if there was nothing to send or every batch
+	 * was sent. Replay stops at the first batch that fails. Only one replay
+	 * runs at a time, a call made while one is running returns its future,
+	 * and the future completes with false while another Eclipse instance is
+	 * replaying the shared journal.
+	 */
+	public CompletableFuture<Boolean> sendOfflineData() {
+		synchronized (offlineReplayLock) {
+			if (offlineReplay == null || offlineReplay.isDone()) {
+				offlineReplay = replayOfflineData();
+			}
+			return offlineReplay;
+		}
+	}
+	
+	private CompletableFuture<Boolean> replayOfflineData() {
+		try {
+			if (!offlineJournal.tryLockReplay()) {
+				SoftwareCoLogger.info("Software.com: Another Eclipse instance is sending the offline data");
+				return CompletableFuture.completedFuture(false);
+			}
+		} catch (IOException e) {
+			SoftwareCoLogger.error("Software.com: Unable to lock the offline data for sending.", e);
+			return CompletableFuture.completedFuture(false);
+		}
+		
+		CompletableFuture<Boolean> replay;
+		try {
+			replay = sealAndSendOfflineData();
+		} catch (RuntimeException e) {
+			replay = new CompletableFuture<Boolean>();
+			replay.completeExceptionally(e);
+		}
+		// held from sealing the segments until the last batch is committed
+		return replay.whenComplete((sent, e) -> {
+			offlineJournal.unlockReplay();
+			if (e != null) {
+				SoftwareCoLogger.error("Software.com: Unable to send the offline data.", e instanceof Exception
+						? (Exception) e : new RuntimeException(e));
+			}
+		});
+	}
+	
+	private CompletableFuture<Boolean> sealAndSendOfflineData() {
+		final List<File> segments;
+		try {
+			importLegacyDataFile();
+			segments = offlineJournal.sealSegments();
+		} catch (Exception e) {
+			SoftwareCoLogger.error("Software.com: Error trying to read and send offline data.", e);
+			return CompletableFuture.completedFuture(false);
+		}
+		
+		if (segments.isEmpty()) {
+			SoftwareCoLogger.info("Software.com: No offline data to send");
+			return CompletableFuture.completedFuture(true);
+		}
+		
+		return sendOfflineBatches(segments, 0);
+	}
+	
+	/**
+	 * Send the batch of segments starting at the given index, then the next
+	 * one once it's been sent and committed
+	 */
+	private CompletableFuture<Boolean> sendOfflineBatches(final List<File> segments, int start) {
+		if (start >= segments.size()) {
+			return CompletableFuture.completedFuture(true);
+		}
+		
+		// whole segments, at least one per batch
+		int end = start;
+		long batchBytes = 0;
+		while (end < segments.size()
+				&& (end == start || batchBytes + segments.get(end).length() <= REPLAY_BATCH_BYTES)) {
+			batchBytes += segments.get(end).length();
+			end++;
+		}
+		final List<File> batch = new ArrayList<File>(segments.subList(start, end));
+		final int next = end;
+		final long sentBytes = batchBytes;
+		
+		//
+		// Stream the stored payloads as a json array rather than building it in memory
+		//
+		return makeApiCallAsync("/data/batch", newJournalEntity(batch)).thenCompose(responseInfo -> {
+			if (!responseInfo.isOk) {
+				return CompletableFuture.completedFuture(false);
+			}
+			try {
+				offlineJournal.commit(batch);
+			} catch (IOException e) {
+				// the batch is sent again on the next replay
+				SoftwareCoLogger.error("Software.com: Unable to commit the sent offline data.", e);
+				return CompletableFuture.completedFuture(false);
+			}
+			SoftwareCoLogger.debug(() -> "Software.com: Sent " + batch.size() + " offline segments (" + sentBytes
+					+ " bytes), " + (segments.size() - next) + " left");
+			return sendOfflineBatches(segments, next);
+		});
+	}
+	
+	private SoftwareCoJsonEntity newJournalEntity(final List<File> segments) {
+		return new SoftwareCoJsonEntity(new SoftwareCoJsonEntity.JsonSource() {
+			public void write(final JsonWriter writer) throws IOException {
+				writer.beginArray();
+				for (final File segment : segments) {
+					// the dictionary is per segment
+					final SoftwareCoPayloadCodec.Decoder decoder = new SoftwareCoPayloadCodec.Decoder();
+					offlineJournal.readSegment(segment, new SoftwareCoOfflineJournal.RecordVisitor() {
+						public void onRecord(byte[] record) throws IOException {
+							try {
+								decoder.transcode(record, writer);
+							} catch (SoftwareCoPayloadCodec.CorruptRecordException e) {
+								SoftwareCoLogger.warn("Software.com: Skipping a journal record in " + segment.getName()
+										+ ", " + e.getMessage(), null);
+							}
+						}
+					});
+				}
+				writer.endArray();
+			}
+		});
+	}
+	
+	/**
+	 * Move the payloads of a data.json left by an older version into the journal
+	 */
+	private void importLegacyDataFile() throws IOException {
+		File f = new File(getSoftwareDataStoreFile());
+		if (!f.exists()) {
+			return;
+		}
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), Charset.defaultCharset()));
+		try {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					offlineJournal.append(SoftwareCoPayloadCodec.encodeJson(line.trim()));
+				}
+			}
+		} finally {
+			br.close();
+		}
+		deleteFile(f.getAbsolutePath());
 	}
 
 	public static void setItem(String key, String val) {
-		JsonObject jsonObj = getSoftwareSessionAsJson();
-	    jsonObj.addProperty(key, val);
-
-	    String content = jsonObj.toString();
-
-	    String sessionFile = getSoftwareSessionFile();
-	    
-	    try {
-		    Writer output = new BufferedWriter(new FileWriter(sessionFile));
-		    output.write(content);
-		    output.close();
-	    } catch (Exception e) {
-	    		SoftwareCoLogger.error("Software.com: Failed to write the key value pair (" + key + ", " + val + ") into the session.", e);
-	    }
+		sessionStore.setItem(key, val);
 	}
 
 	public static String getItem(String key) {
-		JsonObject jsonObj = getSoftwareSessionAsJson();
-		if (jsonObj != null && jsonObj.has(key)) {
-			return jsonObj.get(key).getAsString();
-		}
-		return null;
+		return sessionStore.getItem(key);
 	}
-
-	private static JsonObject getSoftwareSessionAsJson() {
-	    JsonObject data = null;
-
-	    String sessionFile = getSoftwareSessionFile();
-	    File f = new File(sessionFile);
-	    if (f.exists()) {
-	    		try {
-		    		byte[] encoded = Files.readAllBytes(Paths.get(sessionFile));
-		    		String content = new String(encoded, Charset.defaultCharset());
-		    		if (content != null) {
-		    			// json parse it
-		    			data = SoftwareCo.jsonParser.parse(content).getAsJsonObject();
-		    		}
-	    		} catch (Exception e) {
-	    			SoftwareCoLogger.error("Software.com: Error trying to read and json parse the session file.", e);
-	    		}
-	    }
-	    return (data == null) ? new JsonObject() : data;
+	
+	/**
+	 * Write the session keys that are still waiting for the write-behind
+	 */
+	public static void flushSession() {
+		sessionStore.flush();
 	}
 
 	private void deleteFile(String file) {
@@ -238,8 +367,16 @@ public class SoftwareCoSessionManager {
 	}
 
 	public void chekUserAuthenticationStatus() {
-		boolean isOnline = isServerOnline();
-		boolean authenticated = isAuthenticated();
+		isServerOnline().thenCombine(isAuthenticated(), (isOnline, authenticated) -> {
+			handleAuthenticationStatus(isOnline, authenticated);
+			return null;
+		}).exceptionally(e -> {
+			SoftwareCoLogger.error("Software.com: Unable to check the authentication status.", asException(e));
+			return null;
+		});
+	}
+	
+	private void handleAuthenticationStatus(boolean isOnline, boolean authenticated) {
 		boolean pastThresholdTime = isPastTimeThreshold();
 		String jwtToken = getItem("jwt");
 		
@@ -283,15 +420,15 @@ public class SoftwareCoSessionManager {
 			SoftwareCoUtils.setStatusLineMessage("⚠️Software.com", msg);
 			
 			// try again in 10 min
-			authenticationCheckTimer = new Timer();
-			authenticationCheckTimer.schedule(new ProcessAuthenticationCheck(), 1000 * 60 * 10);
+			scheduleAuthenticationCheck();
 		}
 	}
 	
-	private class ProcessAuthenticationCheck extends TimerTask {
-		public void run() {
-			chekUserAuthenticationStatus();
+	private synchronized void scheduleAuthenticationCheck() {
+		if (authenticationCheck != null && !authenticationCheck.isDone()) {
+			return;
 		}
+		authenticationCheck = SoftwareCoExecutors.schedule(() -> chekUserAuthenticationStatus(), 10, TimeUnit.MINUTES);
 	}
 
 	/**
@@ -314,8 +451,15 @@ public class SoftwareCoSessionManager {
 			return;
 		}
 		
-		JsonObject responseData = SoftwareCoUtils.getResponseInfo(
-				makeApiCall("/users/plugin/confirm?token=" + tokenVal, false, null)).jsonObj;
+		makeApiCallAsync("/users/plugin/confirm?token=" + tokenVal, false, null, TOKEN_FIELDS).thenAccept(responseInfo -> {
+			handleTokenAvailability(responseInfo.jsonObj);
+		}).exceptionally(e -> {
+			SoftwareCoLogger.error("Software.com: Unable to check the token availability.", asException(e));
+			return null;
+		});
+	}
+	
+	private static void handleTokenAvailability(JsonObject responseData) {
 		if (responseData != null) {
 			// update the jwt, user and eclipse_lastUpdateTime
 			setItem("jwt", responseData.get("jwt").getAsString());
@@ -323,23 +467,26 @@ public class SoftwareCoSessionManager {
 			setItem("eclipse_lastUpdateTime", String.valueOf(System.currentTimeMillis()));
 		} else {
 			// check again in 2 minutes
-			new Thread(() -> {
-		        try {
-		            Thread.sleep(1000 * 120);
-		            checkTokenAvailability();
-		        }
-		        catch (Exception e){
-		            System.err.println(e);
-		        }
-		    }).start();
+			SoftwareCoExecutors.schedule(() -> checkTokenAvailability(), 2, TimeUnit.MINUTES);
 		}
 	}
 	
 	public void fetchDailyKpmSessionInfo() {
+		if (!SoftwareCoUtils.getApiCircuitBreaker().isCallPermitted()) {
+			// the api is unreachable, keep the current status until it recovers
+			return;
+		}
 		long fromSeconds = Math.round(System.currentTimeMillis() / 1000);
 		// make an async call to get the kpm info
-		JsonObject jsonObj = SoftwareCoUtils.getResponseInfo(
-				makeApiCall("/sessions?from=" + fromSeconds +"&summary=true", false, null)).jsonObj;
+		makeApiCallAsync("/sessions?from=" + fromSeconds +"&summary=true", false, null, KPM_SESSION_FIELDS).thenAccept(responseInfo -> {
+			handleKpmSessionInfo(responseInfo.jsonObj);
+		}).exceptionally(e -> {
+			SoftwareCoLogger.error("Software.com: Unable to fetch the kpm session info.", asException(e));
+			return null;
+		});
+	}
+	
+	private void handleKpmSessionInfo(JsonObject jsonObj) {
 		if (jsonObj != null) {
 			boolean inFlow = true;
 			if (jsonObj.has("inFlow")) {
@@ -398,32 +545,36 @@ public class SoftwareCoSessionManager {
 	
 	public static void launchDashboard() {
 		
-		String url = SoftwareCoUtils.launch_url;
-		
 		// create the token value
 		String token = getItem("token");
 		String jwt = getItem("jwt");
-		boolean addToken = false;
 		if (token == null || token.equals("")) {
 			token = SoftwareCoUtils.generateToken();
 			setItem("token", token);
-			addToken = true;
-		} else if (jwt == null || jwt.equals("") || !isAuthenticated()) {
-			addToken = true;
+			openDashboard(token, true);
+		} else if (jwt == null || jwt.equals("")) {
+			openDashboard(token, true);
+		} else {
+			final String tokenVal = token;
+			isAuthenticated().thenAccept(authenticated -> {
+				// open the browser from the ui thread
+				PlatformUI.getWorkbench().getDisplay().asyncExec(() -> openDashboard(tokenVal, !authenticated));
+			}).exceptionally(e -> {
+				SoftwareCoLogger.error("Software.com: Unable to launch the dashboard.", asException(e));
+				return null;
+			});
 		}
+	}
+	
+	private static void openDashboard(String token, boolean addToken) {
+		
+		String url = SoftwareCoUtils.launch_url;
+		
 		if (addToken) {
 			url += "/onboarding?token=" + token;
 			
 			// checkTokenAvailability in a minute
-			new Thread(() -> {
-		        try {
-		            Thread.sleep(1000 * 60);
-		            checkTokenAvailability();
-		        }
-		        catch (Exception e){
-		            System.err.println(e);
-		        }
-		    }).start();
+			SoftwareCoExecutors.schedule(() -> checkTokenAvailability(), 1, TimeUnit.MINUTES);
 		}
 		
 		try {
@@ -433,35 +584,56 @@ public class SoftwareCoSessionManager {
 		}
 	}
 	
-	private static HttpResponse makeApiCall(String api, boolean isPost, String payload) {
-        
-		SessionManagerHttpClient sendTask = new SessionManagerHttpClient(api, isPost, payload);
-		
-		Future<HttpResponse> response = SoftwareCoUtils.executorService.submit(sendTask);
-		
-		//
-		// Handle the Future if it exist
-		//
-		if ( response != null ) {
-			
-			HttpResponse httpResponse = null;
-			try {
-				httpResponse = response.get();
-				
-				if (httpResponse != null) {
-					return httpResponse;
+	/**
+	 * Make the api request on the executor, the returned future completes with the
+	 * response info once the response entity has been read.
+	 */
+	protected static CompletableFuture<HttpResponseInfo> makeApiCallAsync(String api, boolean isPost, String payload) {
+		return makeApiCallAsync(new SessionManagerHttpClient(api, isPost, payload), null);
+	}
+	
+	/**
+	 * Only the named top level fields of the response are read, pass an
+	 * empty set when only the status is needed
+	 */
+	protected static CompletableFuture<HttpResponseInfo> makeApiCallAsync(
+			String api, boolean isPost, String payload, Set<String> fields) {
+		return makeApiCallAsync(new SessionManagerHttpClient(api, isPost, payload), fields);
+	}
+	
+	protected static CompletableFuture<HttpResponseInfo> makeApiCallAsync(String api, HttpEntity entity) {
+		return makeApiCallAsync(new SessionManagerHttpClient(api, entity), STATUS_ONLY);
+	}
+	
+	private static CompletableFuture<HttpResponseInfo> makeApiCallAsync(
+			final SessionManagerHttpClient sendTask, final Set<String> fields) {
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				HttpResponse response = null;
+				try {
+					response = sendTask.call();
+				} catch (Exception e) {
+					SoftwareCoLogger.error("Software.com: Unable to get the response from the http request.", e);
 				}
-				
-			} catch (InterruptedException | ExecutionException e) {
-				SoftwareCoLogger.error("Software.com: Unable to get the response from the http request.", e);
-			}
+				return SoftwareCoUtils.getResponseInfo(response, fields);
+			}, SoftwareCoExecutors.getApiExecutor());
+		} catch (RejectedExecutionException e) {
+			// the api pool is saturated, treat it as a failed request (offline data stays stored)
+			return CompletableFuture.completedFuture(new HttpResponseInfo());
 		}
-		return null;
+	}
+	
+	private static Exception asException(Throwable e) {
+		if (e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return (e instanceof Exception) ? (Exception) e : new Exception(e);
 	}
 	
 	protected static class SessionManagerHttpClient implements Callable<HttpResponse> {
 		
 		private String payload = null;
+		private HttpEntity entity = null;
 		private String api = null;
 		private boolean isPost = false;
 		
@@ -470,6 +642,15 @@ public class SoftwareCoSessionManager {
 			this.isPost = isPost;
 			this.api = api;
 		}
+		
+		/**
+		 * POST request with a streamed body
+		 */
+		public SessionManagerHttpClient(String api, HttpEntity entity) {
+			this.entity = entity;
+			this.isPost = true;
+			this.api = api;
+		}
 
 		@Override
 		public HttpResponse call() throws Exception {
@@ -479,11 +660,13 @@ public class SoftwareCoSessionManager {
 				HttpResponse response = null;
 				
 				if (!isPost) {
-					req = new HttpGet(SoftwareCoUtils.api_endpoint + "" + this.api);
+					req = new HttpGet(SoftwareCoUtils.getApiEndpoint() + "" + this.api);
 				} else {
-					req = new HttpPost(SoftwareCoUtils.api_endpoint + "" + this.api);
+					req = new HttpPost(SoftwareCoUtils.getApiEndpoint() + "" + this.api);
 
-					if (payload != null) {
+					if (entity != null) {
+						((HttpPost)req).setEntity(entity);
+					} else if (payload != null) {
 						//
 						// add the json payload
 						//
@@ -501,8 +684,12 @@ public class SoftwareCoSessionManager {
 				req.addHeader("Content-type", "application/json");
 				
 				// execute the request
-				SoftwareCoUtils.logApiRequest(req, payload);
-				response = SoftwareCoUtils.httpClient.execute(req);
+				if (entity != null) {
+					SoftwareCoUtils.logApiRequest(req, entity);
+				} else {
+					SoftwareCoUtils.logApiRequest(req, payload);
+				}
+				response = SoftwareCoUtils.executeApiRequest(req);
 				
 				//
 				// Return the response
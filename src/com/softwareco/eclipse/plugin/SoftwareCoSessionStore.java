@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ *
+ * In memory copy of the session file. The file is parsed once and only read
+ * again when its modification time or size changes, which is checked at
+ * most once per check interval since the other Software.com editors share
+ * the file. Writes update the copy right away and are persisted together a
+ * moment later, through a temp file that's moved over the session file.
+ * Keys set here but not yet written survive a reload of the file.
+ *
+ */
+public class SoftwareCoSessionStore {
+
+	private final static long CHECK_INTERVAL_MILLIS = Long.getLong("software.sessionCheckMillis", 2000);
+	private final static long WRITE_DELAY_MILLIS = Long.getLong("software.sessionWriteDelayMillis", 500);
+
+	private final File file;
+
+	private JsonObject session;
+	private long loadedModified = -1;
+	private long loadedSize = -1;
+	private long lastCheckMillis = 0;
+
+	// keys set since the last write, reapplied if the file is reloaded
+	private final Map<String, String> pendingWrites = new HashMap<String, String>();
+	private ScheduledFuture<?> writeTask;
+
+	private long loadCount = 0;
+	private long writeCount = 0;
+
+	public SoftwareCoSessionStore(File file) {
+		this.file = file;
+	}
+
+	public synchronized String getItem(String key) {
+		refresh();
+		JsonElement value = session.get(key);
+		if (value == null || value.isJsonNull()) {
+			return null;
+		}
+		return value.getAsString();
+	}
+
+	public synchronized void setItem(String key, String val) {
+		refresh();
+		session.addProperty(key, val);
+		pendingWrites.put(key, val);
+		scheduleWrite();
+	}
+
+	/**
+	 * Write the pending keys now, used on shutdown
+	 */
+	public void flush() {
+		synchronized (this) {
+			if (writeTask != null) {
+				writeTask.cancel(false);
+				writeTask = null;
+			}
+		}
+		write();
+	}
+
+	private void scheduleWrite() {
+		if (writeTask != null) {
+			// a write is already coming, it picks up this key
+			return;
+		}
+		writeTask = SoftwareCoExecutors.schedule(new Runnable() {
+			public void run() {
+				synchronized (SoftwareCoSessionStore.this) {
+					writeTask = null;
+				}
+				write();
+			}
+		}, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		if (writeTask == null) {
+			// the scheduler is shut down
+			write();
+		}
+	}
+
+	private synchronized void write() {
+		if (pendingWrites.isEmpty()) {
+			return;
+		}
+		// pick up what the other editors wrote since we last looked
+		lastCheckMillis = 0;
+		refresh();
+		try {
+			SoftwareCoUtils.writeFileAtomically(file, session.toString().getBytes(Charset.defaultCharset()));
+			pendingWrites.clear();
+			loadedModified = file.lastModified();
+			loadedSize = file.length();
+			writeCount++;
+		} catch (Exception e) {
+			SoftwareCoLogger.error("Software.com: Failed to write the session file.", e);
+		}
+	}
+
+	/**
+	 * Load the file if it's never been read or it changed since, checking at
+	 * most once per check interval
+	 */
+	private void refresh() {
+		long now = System.currentTimeMillis();
+		if (session != null && now - lastCheckMillis < CHECK_INTERVAL_MILLIS) {
+			return;
+		}
+		lastCheckMillis = now;
+
+		long modified = file.lastModified();
+		long size = file.length();
+		if (session != null && modified == loadedModified && size == loadedSize) {
+			return;
+		}
+
+		JsonObject data = null;
+		if (file.exists()) {
+			try {
+				byte[] encoded = Files.readAllBytes(file.toPath());
+				String content = new String(encoded, Charset.defaultCharset());
+				if (content.trim().length() > 0) {
+					// json parse it
+					data = SoftwareCo.jsonParser.parse(content).getAsJsonObject();
+				}
+			} catch (Exception e) {
+				SoftwareCoLogger.error("Software.com: Error trying to read and json parse the session file.", e);
+				if (session != null) {
+					// keep what we have, the file is read again at the next check
+					return;
+				}
+			}
+		}
+		session = (data == null) ? new JsonObject() : data;
+		for (Map.Entry<String, String> entry : pendingWrites.entrySet()) {
+			session.addProperty(entry.getKey(), entry.getValue());
+		}
+		loadedModified = modified;
+		loadedSize = size;
+		loadCount++;
+	}
+
+	public synchronized long getLoadCount() {
+		return loadCount;
+	}
+
+	public synchronized long getWriteCount() {
+		return writeCount;
+	}
+}
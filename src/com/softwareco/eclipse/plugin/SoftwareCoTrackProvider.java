@@ -0,0 +1,28 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+/**
+ * 
+ * Source of the music track that's currently playing. Providers are sampled
+ * by the SoftwareCoTrackSampler on a background thread, never while typing.
+ *
+ */
+public interface SoftwareCoTrackProvider {
+	
+	/**
+	 * Returns true if the provider can run on this platform.
+	 */
+	boolean isAvailable();
+	
+	/**
+	 * Returns the current track info as a json string, or null if it couldn't
+	 * be read this time.
+	 * @throws Exception if the provider can't be used at all, the sampler then
+	 * disables itself.
+	 */
+	String getCurrentTrack() throws Exception;
+
+}
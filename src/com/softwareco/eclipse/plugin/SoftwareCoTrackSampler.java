@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 
+ * Samples the current music track on a background thread and caches the last
+ * value. The keystroke path only reads the cached snapshot.
+ * 
+ * The sampling interval defaults to 30 seconds and can be set with the
+ * "software.trackSampleSeconds" system property.
+ *
+ */
+public class SoftwareCoTrackSampler {
+	
+	private static final long DEFAULT_SAMPLE_SECONDS = 30;
+	
+	private static SoftwareCoTrackSampler instance = null;
+	
+	private SoftwareCoTrackProvider provider = new SoftwareCoAppleScriptTrackProvider();
+	private long sampleSeconds = Long.getLong("software.trackSampleSeconds", DEFAULT_SAMPLE_SECONDS);
+	
+	private ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> sampleTask;
+	
+	// last sampled track, null if there's none or sampling is disabled
+	private volatile String currentTrack = null;
+	
+	/**
+	 * Protected constructor to defeat instantiation
+	 */
+	protected SoftwareCoTrackSampler() {
+		//
+	}
+
+	public static synchronized SoftwareCoTrackSampler getInstance() {
+		if (instance == null) {
+			instance = new SoftwareCoTrackSampler();
+		}
+		return instance;
+	}
+	
+	/**
+	 * Returns the last sampled track.
+	 */
+	public String getCurrentTrack() {
+		return currentTrack;
+	}
+	
+	/**
+	 * Replace the track provider, restarting the sampler if it's running.
+	 */
+	public synchronized void setProvider(SoftwareCoTrackProvider provider) {
+		boolean running = (scheduler != null);
+		this.stop();
+		this.provider = provider;
+		if (running) {
+			this.start();
+		}
+	}
+	
+	public synchronized void setSampleSeconds(long sampleSeconds) {
+		boolean running = (scheduler != null);
+		this.stop();
+		this.sampleSeconds = sampleSeconds;
+		if (running) {
+			this.start();
+		}
+	}
+	
+	public synchronized boolean isRunning() {
+		return scheduler != null;
+	}
+	
+	/**
+	 * Start sampling, this is a no-op if there's no provider available on
+	 * this platform.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		if (provider == null || !provider.isAvailable() || sampleSeconds <= 0) {
+			SoftwareCoLogger.debug("Software.com: no music track provider available, track sampling is disabled");
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				SoftwareCoExecutors.newThreadFactory("Software.com track sampler", false));
+		sampleTask = scheduler.scheduleWithFixedDelay(new SampleTask(provider), 0, sampleSeconds, TimeUnit.SECONDS);
+	}
+	
+	public synchronized void stop() {
+		if (sampleTask != null) {
+			sampleTask.cancel(false);
+			sampleTask = null;
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		currentTrack = null;
+	}
+	
+	private class SampleTask implements Runnable {
+		
+		private final SoftwareCoTrackProvider taskProvider;
+		
+		private SampleTask(SoftwareCoTrackProvider taskProvider) {
+			this.taskProvider = taskProvider;
+		}
+		
+		public void run() {
+			try {
+				currentTrack = taskProvider.getCurrentTrack();
+			} catch (Exception e) {
+				// the provider can't run here, stop trying
+				SoftwareCoLogger.warn("Software.com: unable to read the current music track, track sampling is disabled", e);
+				disable(taskProvider);
+			}
+		}
+	}
+	
+	private synchronized void disable(SoftwareCoTrackProvider failedProvider) {
+		if (this.provider == failedProvider) {
+			this.stop();
+		}
+	}
+
+}
@@ -4,22 +4,43 @@
  */
 package com.softwareco.eclipse.plugin;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.jface.action.IContributionItem;
 import org.eclipse.jface.action.IStatusLineManager;
 import org.eclipse.swt.widgets.Event;
@@ -33,6 +54,9 @@ import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.texteditor.StatusLineContributionItem;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 public class SoftwareCoUtils {
 
@@ -47,11 +71,46 @@ public class SoftwareCoUtils {
 	private static final String KPM_ITEM_ID = "software.kpm.item";
 	
 	private static com.softwareco.eclipse.plugin.StatusLineContributionItem item;
-	
-	private final static int EOF = -1;
 
-	public static ExecutorService executorService;
-	public static HttpClient httpClient;
+	private final static int MAX_LOGGED_PAYLOAD_LENGTH = 512;
+	private final static long API_LOG_INTERVAL_MILLIS = 1000 * 60;
+	private static final SoftwareCoLogger.RateLimiter apiRequestLogLimiter =
+			new SoftwareCoLogger.RateLimiter(API_LOG_INTERVAL_MILLIS);
+
+	//
+	// Connection pool settings, the plugin only talks to the api host so the
+	// per route limit is what matters. Connections are kept alive for longer
+	// than the one minute send interval so the next send can reuse them.
+	//
+	private final static int MAX_CONNECTIONS_PER_ROUTE = Integer.getInteger("software.httpMaxPerRoute", 4);
+	private final static int MAX_CONNECTIONS_TOTAL = Integer.getInteger("software.httpMaxTotal", 8);
+	private final static long KEEP_ALIVE_MILLIS = 1000 * Long.getLong("software.httpKeepAliveSeconds", 90);
+	private final static int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+	//
+	// Resilience settings for api requests. Failed requests are retried with
+	// jittered exponential backoff within a per endpoint budget, repeated
+	// failures open the circuit breaker so requests fail fast until a probe
+	// gets through.
+	//
+	private final static int MAX_RETRIES = 2;
+	private final static int RETRY_BUDGET_PER_MINUTE = 5;
+	private final static long RETRY_BASE_DELAY_MILLIS = 500;
+	private final static long RETRY_MAX_DELAY_MILLIS = 4000;
+	private final static int BREAKER_FAILURE_THRESHOLD = 3;
+	private final static long BREAKER_OPEN_MILLIS = 1000 * 30;
+	private final static long BREAKER_MAX_OPEN_MILLIS = 1000 * 60 * 10;
+
+	private final static SoftwareCoRetryBudget retryBudget = new SoftwareCoRetryBudget(
+			RETRY_BUDGET_PER_MINUTE, 1000 * 60, RETRY_BASE_DELAY_MILLIS, RETRY_MAX_DELAY_MILLIS);
+	private final static SoftwareCoCircuitBreaker apiCircuitBreaker = new SoftwareCoCircuitBreaker(
+			"api", BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MILLIS, BREAKER_MAX_OPEN_MILLIS);
+
+	// responses are json objects of a few hundred bytes, anything far beyond that is an error
+	private final static long MAX_RESPONSE_BYTES = Long.getLong("software.maxResponseBytes", 1024 * 1024);
+
+	public static CloseableHttpClient httpClient;
+	private static PoolingHttpClientConnectionManager connectionManager;
 
 	static {
 		// initialize the HttpClient
@@ -61,13 +120,27 @@ public class SoftwareCoUtils {
 				.setSocketTimeout(10000)
 				.build();
 
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+		connectionManager.setMaxTotal(Math.max(MAX_CONNECTIONS_TOTAL, MAX_CONNECTIONS_PER_ROUTE));
+		// check a connection that sat idle before leasing it, the server may have closed it
+		connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
 		httpClient = HttpClientBuilder
 				.create()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+					public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+						// honor the server's keep-alive timeout if it sent one
+						long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+						return (duration > 0) ? Math.min(duration, KEEP_ALIVE_MILLIS) : KEEP_ALIVE_MILLIS;
+					}
+				})
+				.evictExpiredConnections()
+				.evictIdleConnections(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS)
 				.setDefaultRequestConfig(config)
 				.build();
 
-		executorService = Executors.newCachedThreadPool();
-		
 		item = new com.softwareco.eclipse.plugin.StatusLineContributionItem(KPM_ITEM_ID, false /*addTrailingSpaces*/);
 		
 		Listener listener = new Listener() {
@@ -81,63 +154,253 @@ public class SoftwareCoUtils {
 	
 	public static class HttpResponseInfo {
 		public boolean isOk;
-		public String jsonStr;
 		public JsonObject jsonObj;
 	}
 	
+	/**
+	 * Returns the leased, available and pending connection counts of the http client's pool
+	 */
+	public static PoolStats getConnectionPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * Returns the api endpoint, the "software.apiEndpoint" system property
+	 * overrides it (e.g. with a local stand-in server)
+	 */
+	public static String getApiEndpoint() {
+		return System.getProperty("software.apiEndpoint", api_endpoint);
+	}
+
+	public static SoftwareCoCircuitBreaker getApiCircuitBreaker() {
+		return apiCircuitBreaker;
+	}
+
+	/**
+	 * Execute an api request through the circuit breaker and retry budget.
+	 * Returns null without a network attempt if the breaker is open. Connect
+	 * failures, 429 and 502-504 responses are retried, other failures are
+	 * only retried for requests that aren't a POST.
+	 */
+	public static HttpResponse executeApiRequest(final HttpUriRequest req) throws IOException {
+		return executeApiRequest(req, apiCircuitBreaker, retryBudget);
+	}
+
+	static HttpResponse executeApiRequest(final HttpUriRequest req, SoftwareCoCircuitBreaker breaker,
+			SoftwareCoRetryBudget budget) throws IOException {
+		if (!breaker.tryAcquire()) {
+			SoftwareCoLogger.debug(() -> "Software.com: api circuit breaker is open, skipping "
+					+ req.getMethod() + " " + req.getURI());
+			return null;
+		}
+
+		String endpoint = SoftwareCoRetryBudget.getEndpoint(req.getURI().getPath());
+		boolean isPost = "POST".equals(req.getMethod());
+		int retries = 0;
+		while (true) {
+			HttpResponse response = null;
+			IOException failure = null;
+			try {
+				response = httpClient.execute(req);
+			} catch (IOException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				// e.g. a json error writing a streamed body or a shut down client, the
+				// breaker still needs an outcome or a half open probe never finishes
+				breaker.onFailure();
+				throw e;
+			}
+
+			boolean retryable;
+			if (failure != null) {
+				retryable = !isPost || isConnectFailure(failure);
+			} else {
+				int status = response.getStatusLine().getStatusCode();
+				if (status < 500 && status != 429) {
+					breaker.onSuccess();
+					return response;
+				}
+				retryable = (!isPost || status == 429 || (status >= 502 && status <= 504));
+			}
+
+			// the half open probe gets a single attempt
+			if (!retryable || retries >= MAX_RETRIES
+					|| breaker.getState() != SoftwareCoCircuitBreaker.State.CLOSED
+					|| !budget.tryAcquire(endpoint)) {
+				breaker.onFailure();
+				if (failure != null) {
+					throw failure;
+				}
+				return response;
+			}
+
+			if (response != null) {
+				EntityUtils.consumeQuietly(response.getEntity());
+			}
+			retries++;
+			try {
+				Thread.sleep(budget.getBackoffMillis(retries));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				breaker.onFailure();
+				throw new InterruptedIOException("Interrupted waiting to retry " + req.getURI());
+			}
+			final int retry = retries;
+			SoftwareCoLogger.debug(() -> "Software.com: retrying " + req.getMethod() + " " + req.getURI()
+					+ " (retry " + retry + ")");
+		}
+	}
+
+	/**
+	 * True if the request failed before it reached the server, so it's safe to send again
+	 */
+	private static boolean isConnectFailure(IOException e) {
+		return e instanceof ConnectException
+				|| e instanceof ConnectTimeoutException
+				|| e instanceof UnknownHostException;
+	}
+
 	/**
 	 * Return the http response info data
 	 * @param response
 	 * @return
 	 */
 	public static HttpResponseInfo getResponseInfo(HttpResponse response) {
+		return getResponseInfo(response, null);
+	}
+
+	/**
+	 * Read the response status and its json object body. The body is parsed
+	 * straight from the response stream, when fields is given only those top
+	 * level fields are kept and the rest of the body is skipped.
+	 */
+	public static HttpResponseInfo getResponseInfo(HttpResponse response, Set<String> fields) {
 		HttpResponseInfo responseInfo = new HttpResponseInfo();
+		if (response == null) {
+			return responseInfo;
+		}
+		boolean tooLarge = false;
 		try {
-			// get the entity json string
-			// (consume the entity so there's no connection leak causing a connection pool timeout)
-			String jsonStr = getStringRepresentation(response.getEntity());
-			if (jsonStr != null) {
-				JsonObject jsonObj = SoftwareCo.jsonParser.parse(jsonStr).getAsJsonObject();
-				responseInfo.jsonObj = jsonObj;
-				responseInfo.jsonStr = jsonStr;
-			}
 			responseInfo.isOk = isOk(response);
+			HttpEntity entity = response.getEntity();
+			if (entity != null && (fields == null || !fields.isEmpty())) {
+				responseInfo.jsonObj = readJsonObject(entity, fields);
+			}
+		} catch (ResponseTooLargeException e) {
+			tooLarge = true;
+			SoftwareCoLogger.error("Software.com: " + e.getMessage());
 		} catch (Exception e) {
 			SoftwareCoLogger.error("Unable to get http response info.", e);
+		} finally {
+			if (tooLarge && response instanceof Closeable) {
+				// drop the connection rather than reading the rest of an oversized body
+				try {
+					((Closeable) response).close();
+				} catch (IOException e) {
+					// the connection is discarded either way
+				}
+			} else {
+				// make sure the connection goes back to the pool if reading failed part way
+				EntityUtils.consumeQuietly(response.getEntity());
+			}
 		}
 		return responseInfo;
 	}
 
-	private static String getStringRepresentation(HttpEntity res) throws IOException {
-		if (res == null) {
+	/**
+	 * Parse the entity as a json object using its declared charset (UTF-8 if none),
+	 * returns null if the body is empty or isn't an object
+	 */
+	private static JsonObject readJsonObject(HttpEntity entity, Set<String> fields) throws IOException {
+		if (entity.getContentLength() > MAX_RESPONSE_BYTES) {
+			throw new ResponseTooLargeException(entity.getContentLength());
+		}
+		ContentType contentType = ContentType.get(entity);
+		Charset charset = (contentType != null) ? contentType.getCharset() : null;
+		if (charset == null) {
+			charset = StandardCharsets.UTF_8;
+		}
+
+		JsonReader reader = new JsonReader(new InputStreamReader(
+				new LimitedInputStream(entity.getContent(), MAX_RESPONSE_BYTES), charset));
+		reader.setLenient(true);
+		try {
+			if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+				return null;
+			}
+			if (fields == null) {
+				return SoftwareCo.jsonParser.parse(reader).getAsJsonObject();
+			}
+			JsonObject jsonObj = new JsonObject();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (fields.contains(name)) {
+					jsonObj.add(name, SoftwareCo.jsonParser.parse(reader));
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return jsonObj;
+		} catch (EOFException e) {
+			// empty body
 			return null;
+		} catch (JsonParseException e) {
+			if (e.getCause() instanceof ResponseTooLargeException) {
+				throw (ResponseTooLargeException) e.getCause();
+			}
+			throw e;
+		} finally {
+			reader.close();
 		}
+	}
 
-		InputStream inputStream = res.getContent();
+	private static class ResponseTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
 
-		// Timing information--- verified that the data is still streaming
-		// when we are called (this interval is about 2s for a large response.)
-		// So in theory we should be able to do somewhat better by interleaving
-		// parsing and reading, but experiments didn't show any improvement.
-		//
+		ResponseTooLargeException(long length) {
+			super("Response of " + ((length >= 0) ? length + " bytes" : "unknown length")
+					+ " is over the " + MAX_RESPONSE_BYTES + " byte limit");
+		}
+	}
 
-		StringBuffer sb = new StringBuffer();
-		InputStreamReader reader;
-		reader = new InputStreamReader(inputStream);
+	/**
+	 * Fails the read once more than the limit has been read from the stream
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+		private final long limit;
+		private long count = 0;
 
-		BufferedReader br = new BufferedReader(reader);
-		boolean done = false;
-		while (!done) {
-			String aLine = br.readLine();
-			if (aLine != null) {
-				sb.append(aLine);
-			} else {
-				done = true;
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				checkLimit(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				checkLimit(n);
 			}
+			return n;
 		}
-		br.close();
 
-		return sb.toString();
+		private void checkLimit(int n) throws IOException {
+			count += n;
+			if (count > limit) {
+				throw new ResponseTooLargeException(-1);
+			}
+		}
 	}
 
 	private static boolean isOk(HttpResponse response) {
@@ -147,11 +410,34 @@ public class SoftwareCoUtils {
 		return true;
 	}
 	
-	public static void logApiRequest(HttpUriRequest req, String payload) {
-		String jwt = SoftwareCoSessionManager.getItem("jwt");
-		SoftwareCoLogger.info("Software.com: executing request "
-				+ "[method: " + req.getMethod() + ", URI: " + req.getURI()
-				+ ", payload: " + payload + ", jwt: " + jwt + "]");
+	/**
+	 * Log the outgoing request. At debug level the payload is logged cut to
+	 * MAX_LOGGED_PAYLOAD_LENGTH characters, at info level only its size is
+	 * logged and at most once every API_LOG_INTERVAL_MILLIS.
+	 */
+	public static void logApiRequest(final HttpUriRequest req, final String payload) {
+		if (SoftwareCoLogger.isDebugEnabled()) {
+			SoftwareCoLogger.debug("Software.com: executing request "
+					+ "[method: " + req.getMethod() + ", URI: " + req.getURI()
+					+ ", payload: " + SoftwareCoLogger.truncate(payload, MAX_LOGGED_PAYLOAD_LENGTH) + "]");
+		} else if (SoftwareCoLogger.isInfoEnabled()) {
+			SoftwareCoLogger.info(apiRequestLogLimiter, () -> "Software.com: executing request "
+					+ "[method: " + req.getMethod() + ", URI: " + req.getURI()
+					+ ", payload length: " + ((payload != null) ? payload.length() : 0) + "]");
+		}
+	}
+	
+	/**
+	 * Log a request whose body is streamed, only the entity's description is logged
+	 */
+	public static void logApiRequest(final HttpUriRequest req, final HttpEntity entity) {
+		if (SoftwareCoLogger.isDebugEnabled()) {
+			SoftwareCoLogger.debug("Software.com: executing request "
+					+ "[method: " + req.getMethod() + ", URI: " + req.getURI() + ", entity: " + entity + "]");
+		} else if (SoftwareCoLogger.isInfoEnabled()) {
+			SoftwareCoLogger.info(apiRequestLogLimiter, () -> "Software.com: executing request "
+					+ "[method: " + req.getMethod() + ", URI: " + req.getURI() + ", entity: " + entity + "]");
+		}
 	}
 	
 	public static void reDisplayStatusMessage() {
@@ -223,122 +509,39 @@ public class SoftwareCoUtils {
 		});
 	}
 	
-	public static String getCurrentMusicTrack() {
-        String script =
-                "on buildItunesRecord(appState)\n" +
-                    "tell application \"iTunes\"\n" +
-                        "set track_artist to artist of current track\n" +
-                        "set track_name to name of current track\n" +
-                        "set track_genre to genre of current track\n" +
-                        "set track_id to database ID of current track\n" +
-                        "set json to \"genre='\" & track_genre & \"';artist='\" & track_artist & \"';id='\" & track_id & \"';name='\" & track_name & \"';state='playing'\"\n" +
-                    "end tell\n" +
-                    "return json\n" +
-                "end buildItunesRecord\n" +
-                "on buildSpotifyRecord(appState)\n\n" +
-                    "tell application \"Spotify\"\n" +
-                        "set track_artist to artist of current track\n" +
-                        "set track_name to name of current track\n" +
-                        "set track_duration to duration of current track\n" +
-                        "set track_id to id of current track\n" +
-                        "set json to \"genre='';artist='\" & track_artist & \"';id='\" & track_id & \"';name='\" & track_name & \"';state='playing'\"\n" +
-                    "end tell\n" +
-                    "return json\n" +
-                "end buildSpotifyRecord\n\n" +
-                "try\n" +
-                    "if application \"Spotify\" is running and application \"iTunes\" is not running then\n" +
-                        "tell application \"Spotify\" to set spotifyState to (player state as text)\n" +
-                        "-- spotify is running and itunes is not\n" +
-                        "if (spotifyState is \"paused\" or spotifyState is \"playing\") then\n" +
-                            "set jsonRecord to buildSpotifyRecord(spotifyState)\n" +
-                        "else\n" +
-                            "set jsonRecord to {}\n" +
-                        "end if\n" +
-                    "else if application \"Spotify\" is running and application \"iTunes\" is running then\n" +
-                        "tell application \"Spotify\" to set spotifyState to (player state as text)\n" +
-                        "tell application \"iTunes\" to set itunesState to (player state as text)\n" +
-                        "-- both are running but use spotify as a higher priority\n" +
-                        "if spotifyState is \"playing\" then\n" +
-                            "set jsonRecord to buildSpotifyRecord(spotifyState)\n" +
-                        "else if itunesState is \"playing\" then\n" +
-                            "set jsonRecord to buildItunesRecord(itunesState)\n" +
-                        "else if spotifyState is \"paused\" then\n" +
-                            "set jsonRecord to buildSpotifyRecord(spotifyState)\n" +
-                        "else\n" +
-                            "set jsonRecord to {}\n" +
-                        "end if\n" +
-                    "else if application \"iTunes\" is running and application \"Spotify\" is not running then\n" +
-                        "tell application \"iTunes\" to set itunesState to (player state as text)\n" +
-                        "set jsonRecord to buildItunesRecord(itunesState)\n" +
-                    "else\n" +
-                        "set jsonRecord to {}\n" +
-                    "end if\n" +
-                    "return jsonRecord\n" +
-                "on error\n" +
-                    "return {}\n" +
-                "end try";
-
-        String trackInfoStr = eval(script);
-        // genre:Alternative, artist:AWOLNATION, id:6761, name:Kill Your Heroes, state:playing
-        JsonObject jsonObj = new JsonObject();
-        if (trackInfoStr != null && !trackInfoStr.equals("")) {
-            // trim and replace things
-            trackInfoStr = trackInfoStr.trim();
-            trackInfoStr = trackInfoStr.replace("\"", "");
-            trackInfoStr = trackInfoStr.replace("'", "");
-            String[] paramParts = trackInfoStr.split(";");
-            for (String paramPart : paramParts) {
-                paramPart = paramPart.trim();
-                String[] params = paramPart.split("=");
-                if (params != null && params.length == 2) {
-                    jsonObj.addProperty(params[0], params[1]);
-                }
-            }
-        }
-        return SoftwareCo.gson.toJson(jsonObj);
-    }
-
-    /**
-     * Execute AppleScript using {@literal osascript} No exceptions are thrown by this method.
-     *
-     * @param code the code to evaluate
-     * @return script result.
-     */
-    private static String eval(String code) {
-        Runtime runtime = Runtime.getRuntime();
-        String[] args = { "osascript", "-e", code };
-
-        try {
-            Process process = runtime.exec(args);
-            process.waitFor();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            InputStream is = process.getInputStream();
-            copyLarge(is, baos, new byte[4096]);
-            return baos.toString().trim();
-
-        } catch (IOException e) {
-        	SoftwareCoLogger.warn(e.getMessage(), e);
-            return null;
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return null;
-        }
-    }
-
-    private static long copyLarge(InputStream input, OutputStream output, byte[] buffer) throws IOException {
-
-        long count = 0;
-        int n;
-        while (EOF != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
-        }
-        return count;
-    }
-	
 	public static String generateToken() {
         String uuid = UUID.randomUUID().toString();
         return uuid.replace("-", "");
     }
+	
+	/**
+	 * Write the content to a temp file next to the target, force it to disk and
+	 * move it over the target. Readers see either the old or the new content.
+	 */
+	public static void writeFileAtomically(File file, byte[] content) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		Path tmp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+		try {
+			FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(content);
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				out.force(false);
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
 }
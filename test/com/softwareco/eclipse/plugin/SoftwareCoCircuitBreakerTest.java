@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
+import com.softwareco.eclipse.plugin.SoftwareCoCircuitBreaker.State;
+
+/**
+ * Sends api requests through a breaker of its own to a stand-in server that
+ * flaps between failing and answering.
+ */
+public class SoftwareCoCircuitBreakerTest {
+
+	private static final long OPEN_MILLIS = 100;
+
+	private final AtomicInteger status = new AtomicInteger(200);
+	private final SoftwareCoCircuitBreaker breaker = new SoftwareCoCircuitBreaker("test", 2, OPEN_MILLIS,
+			4 * OPEN_MILLIS);
+	private final SoftwareCoRetryBudget budget = new SoftwareCoRetryBudget(100, 60000, 5, 10);
+	private SoftwareCoStandInServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new SoftwareCoStandInServer();
+		server.setResponder(new SoftwareCoStandInServer.Responder() {
+			public int respond(SoftwareCoStandInServer.Request request) {
+				return status.get();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void theBreakerOpensProbesAndClosesAsTheServerFlaps() throws Exception {
+		status.set(503);
+		// a get is retried twice before it counts as one failure
+		assertEquals(503, get());
+		assertEquals(3, server.getRequests().size());
+		assertEquals(State.CLOSED, breaker.getState());
+		assertEquals(503, get());
+		assertEquals(State.OPEN, breaker.getState());
+
+		// open, nothing is sent
+		assertEquals(-1, get());
+		assertEquals(6, server.getRequests().size());
+
+		// the probe gets one attempt, failing it doubles the open period
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertEquals(503, get());
+		assertEquals(7, server.getRequests().size());
+		assertEquals(State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getOpenCount());
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertEquals(-1, get());
+
+		status.set(200);
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertEquals(200, get());
+		assertEquals(State.CLOSED, breaker.getState());
+		assertEquals(0, breaker.getConsecutiveFailures());
+
+		// and down again, back to the base open period
+		status.set(503);
+		get();
+		get();
+		assertEquals(State.OPEN, breaker.getState());
+		status.set(200);
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertEquals(200, get());
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void aProbeThatThrowsAtRuntimeReopensTheBreaker() throws Exception {
+		status.set(503);
+		get();
+		get();
+		assertEquals(State.OPEN, breaker.getState());
+		Thread.sleep(OPEN_MILLIS + 20);
+
+		final JsonIOException broken = new JsonIOException("broken payload");
+		HttpPost post = new HttpPost(server.getEndpoint() + "/data");
+		post.setEntity(new SoftwareCoJsonEntity(new SoftwareCoJsonEntity.JsonSource() {
+			public void write(JsonWriter writer) throws IOException {
+				throw broken;
+			}
+		}, false));
+		try {
+			SoftwareCoUtils.executeApiRequest(post, breaker, budget);
+			fail("the json error should reach the caller");
+		} catch (JsonIOException e) {
+			assertSame(broken, e);
+		}
+		// not stuck half open with the probe never coming back
+		assertEquals(State.OPEN, breaker.getState());
+
+		status.set(200);
+		Thread.sleep(2 * OPEN_MILLIS + 20);
+		assertEquals(200, get());
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void aStreamedPostIsResentWithTheSameBody() throws Exception {
+		status.set(503);
+		SoftwareCoKeystrokeCount keystrokeCount = new SoftwareCoKeystrokeCount();
+		HttpPost streamed = new HttpPost(server.getEndpoint() + "/data");
+		streamed.setEntity(SoftwareCoJsonEntity.forObject(keystrokeCount));
+		assertEquals(503, execute(streamed));
+		assertEquals(3, server.getRequests().size());
+		for (SoftwareCoStandInServer.Request request : server.getRequests()) {
+			assertEquals(SoftwareCo.gson.toJson(keystrokeCount), request.getText());
+		}
+
+		// a post the server failed is only retried on 429 and 502-504
+		status.set(500);
+		assertEquals(500, execute(streamed));
+		assertEquals(4, server.getRequests().size());
+	}
+
+	private int get() throws IOException {
+		return execute(new HttpGet(server.getEndpoint() + "/users/ping"));
+	}
+
+	/**
+	 * The response status, or -1 if the breaker turned the request away
+	 */
+	private int execute(HttpUriRequest req) throws IOException {
+		HttpResponse response = SoftwareCoUtils.executeApiRequest(req, breaker, budget);
+		if (response == null) {
+			return -1;
+		}
+		EntityUtils.consumeQuietly(response.getEntity());
+		return response.getStatusLine().getStatusCode();
+	}
+}
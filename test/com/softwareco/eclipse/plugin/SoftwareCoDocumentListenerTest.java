@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+
+import org.eclipse.jface.text.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Edits real documents across lines and checks the line breaks the listener
+ * counts against the document's own line count.
+ */
+public class SoftwareCoDocumentListenerTest {
+
+	private static final String FILE_NAME = "/tmp/software-document-test/Lines.java";
+
+	private final SoftwareCoDocumentListener listener = new SoftwareCoDocumentListener(FILE_NAME);
+	private Document document;
+
+	@Before
+	public void setUp() {
+		SoftwareCoKeystrokeManager.getInstance().processKeystrokeCountForTermination();
+	}
+
+	@After
+	public void tearDown() {
+		SoftwareCoKeystrokeManager.getInstance().processKeystrokeCountForTermination();
+	}
+
+	@Test
+	public void insertedLineBreaksAreCountedOnceEach() {
+		assertEquals(0, SoftwareCo.countLineBreaks("", 0));
+		assertEquals(1, SoftwareCo.countLineBreaks("\n", 1));
+		assertEquals(1, SoftwareCo.countLineBreaks("\r\n", 2));
+		assertEquals(2, SoftwareCo.countLineBreaks("a\r\nb\r\n", 6));
+		// a carriage return ending the text is a line break of its own
+		assertEquals(1, SoftwareCo.countLineBreaks("a\r", 2));
+		assertEquals(2, SoftwareCo.countLineBreaks("\r\r\n", 3));
+		assertEquals(3, SoftwareCo.countLineBreaks("\n\r\n\r", 4));
+	}
+
+	@Test
+	public void linesAddedAndRemovedFollowTheDocument() throws Exception {
+		edit("line one\nline two\r\nline three\n");
+
+		// typed and pasted line breaks
+		assertLines(1, 0, document.getLength(), 0, "\n");
+		assertLines(2, 0, document.getLength(), 0, "a\r\nb\r\n");
+		assertLines(1, 0, document.getLength(), 0, "c\r");
+
+		// a region ending right after a line break removes that one line break
+		assertLines(0, 1, 0, "line one\n".length(), "");
+		// replaced across lines, "two\r\nline three\n" becomes "2"
+		assertLines(0, 2, "line ".length(), "two\r\nline three\n".length(), "2");
+		// and back again
+		assertLines(2, 0, "line ".length(), 1, "two\r\nline three\n");
+	}
+
+	@Test
+	public void deletingTheCarriageReturnOfALineBreakRemovesNoLine() throws Exception {
+		edit("one\r\ntwo");
+		// "one\ntwo" still has two lines
+		assertLines(0, 0, 3, 1, "");
+		assertEquals("one\ntwo", document.get());
+	}
+
+	private void edit(String text) {
+		document = new Document(text);
+		document.addDocumentListener(listener);
+	}
+
+	/**
+	 * Replace a region and check the line breaks it added and removed add up
+	 * to the change in the document's line count
+	 */
+	private void assertLines(int added, int removed, int offset, int length, String text) throws Exception {
+		int[] before = lines();
+		int documentLines = document.getNumberOfLines();
+		document.replace(offset, length, text);
+		int[] after = lines();
+		assertEquals("lines added", added, after[0] - before[0]);
+		assertEquals("lines removed", removed, after[1] - before[1]);
+		assertEquals(documentLines + added - removed, document.getNumberOfLines());
+	}
+
+	/**
+	 * The file's lines added and removed so far, the aggregator isn't running
+	 * so each change is applied as it's published
+	 */
+	private int[] lines() {
+		SoftwareCoFileMetrics metrics = SoftwareCoKeystrokeManager.getInstance()
+				.getKeystrokeCount(listener.getProjectName()).getFileMetrics().get(FILE_NAME);
+		if (metrics == null) {
+			return new int[] { 0, 0 };
+		}
+		return new int[] { metrics.getLinesAdded(), metrics.getLinesRemoved() };
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.softwareco.eclipse.plugin.SoftwareCoEventRingBuffer.OverflowPolicy;
+
+/**
+ * Runs the aggregator with this thread as the producer.
+ */
+public class SoftwareCoEventAggregatorTest {
+
+	private static final long WAIT_MILLIS = 5000;
+	private static final String FILE_NAME = "/tmp/software-aggregator-test/Aggregated.java";
+
+	private final SoftwareCoEventAggregator aggregator = new SoftwareCoEventAggregator();
+	private final SoftwareCoKeystrokeManager keystrokeMgr = SoftwareCoKeystrokeManager.getInstance();
+
+	@Before
+	public void setUp() {
+		keystrokeMgr.processKeystrokeCountForTermination();
+	}
+
+	@After
+	public void tearDown() {
+		aggregator.stop();
+		keystrokeMgr.processKeystrokeCountForTermination();
+	}
+
+	@Test
+	public void theIdleAggregatorParksUntilARecordIsPublished() throws Exception {
+		aggregator.start(Thread.currentThread());
+		Thread thread = findAggregatorThread();
+		// parked without a timeout, not polling
+		assertTrue(waitForState(thread, Thread.State.WAITING));
+
+		SoftwareCoDocumentListener doc = new SoftwareCoDocumentListener(FILE_NAME);
+		aggregator.publish(doc, 1, 0, 0, 1, 0, 0, 10, 1);
+		assertTrue(waitForKeystrokes(1));
+		assertTrue(waitForState(thread, Thread.State.WAITING));
+
+		aggregator.publish(doc, 1, 0, 0, 1, 0, 0, 11, 1);
+		assertTrue(waitForKeystrokes(2));
+	}
+
+	@Test
+	public void stopRecordsWhatIsLeftInTheRing() throws Exception {
+		aggregator.start(Thread.currentThread());
+		SoftwareCoDocumentListener doc = new SoftwareCoDocumentListener(FILE_NAME);
+		int published = 3 * aggregator.getRing().getCapacity();
+		for (int i = 0; i < published; i++) {
+			aggregator.publish(doc, 1, 0, 0, 1, 0, 0, i, 1);
+		}
+		aggregator.stop();
+
+		assertEquals(published, recordedKeystrokes());
+	}
+
+	@Test
+	public void stopDrainsAfterTheBusyAggregatorThreadExits() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		SoftwareCoDocumentListener slowDoc = new SoftwareCoDocumentListener(FILE_NAME) {
+			@Override
+			public String getFileName() {
+				entered.countDown();
+				try {
+					release.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.getFileName();
+			}
+		};
+		SoftwareCoDocumentListener doc = new SoftwareCoDocumentListener(FILE_NAME);
+
+		aggregator.start(Thread.currentThread());
+		aggregator.publish(slowDoc, 1, 0, 0, 1, 0, 0, 1, 1);
+		assertTrue(entered.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		// the aggregator thread is stuck in the first record while these queue up
+		int published = 100;
+		for (int i = 0; i < published; i++) {
+			aggregator.publish(doc, 1, 0, 0, 1, 0, 0, i, 1);
+		}
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					//
+				}
+				release.countDown();
+			}
+		}).start();
+		aggregator.stop(WAIT_MILLIS);
+
+		assertEquals(0, aggregator.getRing().size());
+		assertEquals(published + 1, recordedKeystrokes());
+	}
+
+	@Test
+	public void theHighWaterMarkIsTheFullestTheRingGot() throws Exception {
+		SoftwareCoEventRingBuffer ring = new SoftwareCoEventRingBuffer(16, OverflowPolicy.DROP);
+		SoftwareCoEventRingBuffer.EventHandler ignore = new SoftwareCoEventRingBuffer.EventHandler() {
+			public void onEvent(SoftwareCoDocumentListener doc, int adds, int pastes, int deletes, int keystrokes,
+					int linesAdded, int linesRemoved, int docLength, int docLines, long timestamp) {
+				//
+			}
+		};
+		// many more records than the capacity go through, never more than 3 at a time
+		for (int i = 0; i < 1000; i++) {
+			for (int j = 0; j < 3; j++) {
+				ring.publish(null, 1, 0, 0, 1, 0, 0, 0, 0, 0);
+			}
+			ring.drain(ignore, 16);
+		}
+		assertEquals(3, ring.getHighWaterMark());
+
+		for (int i = 0; i < 20; i++) {
+			ring.publish(null, 1, 0, 0, 1, 0, 0, 0, 0, 0);
+		}
+		ring.drain(ignore, 16);
+		assertEquals(16, ring.getHighWaterMark());
+		assertEquals(4, ring.getDroppedCount());
+	}
+
+	private long recordedKeystrokes() {
+		long keystrokes = 0;
+		for (SoftwareCoKeystrokeCount keystrokeCount : keystrokeMgr.processKeystrokeCountForTermination()) {
+			keystrokes += Long.parseLong(keystrokeCount.getData());
+		}
+		return keystrokes;
+	}
+
+	private boolean waitForKeystrokes(long expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			long keystrokes = 0;
+			for (SoftwareCoKeystrokeManager.KeystrokeCountWrapper wrapper : keystrokeMgr.getKeystrokeCountWrapperList()) {
+				keystrokes += Long.parseLong(wrapper.getKeystrokeCount().getData());
+			}
+			if (keystrokes == expected) {
+				return true;
+			}
+			Thread.sleep(5);
+		}
+		return false;
+	}
+
+	private static Thread findAggregatorThread() {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("Software.com keystroke aggregator") && thread.isAlive()) {
+				return thread;
+			}
+		}
+		throw new AssertionError("no aggregator thread");
+	}
+
+	private static boolean waitForState(Thread thread, Thread.State state) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			if (thread.getState() == state) {
+				return true;
+			}
+			Thread.sleep(5);
+		}
+		return false;
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 
+ * Track provider for the tests, it returns whatever track it's given and
+ * counts how often it was sampled.
+ *
+ */
+public class SoftwareCoFakeTrackProvider implements SoftwareCoTrackProvider {
+	
+	private final boolean available;
+	private volatile String track;
+	private volatile Exception failure;
+	private final AtomicInteger sampleCount = new AtomicInteger();
+	
+	public SoftwareCoFakeTrackProvider(boolean available, String track) {
+		this.available = available;
+		this.track = track;
+	}
+	
+	@Override
+	public boolean isAvailable() {
+		return available;
+	}
+	
+	@Override
+	public String getCurrentTrack() throws Exception {
+		sampleCount.incrementAndGet();
+		if (failure != null) {
+			throw failure;
+		}
+		return track;
+	}
+	
+	public void setTrack(String track) {
+		this.track = track;
+	}
+	
+	/**
+	 * Make the next samples fail, as osascript does where it isn't installed
+	 */
+	public void setFailure(Exception failure) {
+		this.failure = failure;
+	}
+	
+	public int getSampleCount() {
+		return sampleCount.get();
+	}
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.ui.IEditorInput;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IEditorReference;
+import org.eclipse.ui.IWorkbenchPage;
+import org.eclipse.ui.part.FileEditorInput;
+import org.eclipse.ui.texteditor.IDocumentProvider;
+import org.eclipse.ui.texteditor.ITextEditor;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Opens and closes fake text editors on real documents and checks the
+ * document listeners are attached once and let go of.
+ */
+public class SoftwareCoFileEditorListenerTest {
+
+	private static final long GC_WAIT_MILLIS = 10000;
+	private static final String FILE_NAME = "/tmp/software-editor-test/Edited.java";
+
+	private final SoftwareCoFileEditorListener editorListener = new SoftwareCoFileEditorListener();
+	private final List<IEditorReference> openEditors = new ArrayList<IEditorReference>();
+	private final IWorkbenchPage page = proxy(IWorkbenchPage.class, new InvocationHandler() {
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("getEditorReferences")) {
+				return openEditors.toArray(new IEditorReference[openEditors.size()]);
+			}
+			return identity(proxy, method, args);
+		}
+	});
+
+	@After
+	public void tearDown() {
+		SoftwareCoKeystrokeManager.getInstance().processKeystrokeCountForTermination();
+	}
+
+	@Test
+	public void theListenerIsDetachedWhenTheLastEditorOnTheDocumentCloses() {
+		CountingDocument document = new CountingDocument("class Edited {\n}\n");
+		IEditorInput input = new FileEditorInput(file(FILE_NAME));
+		IEditorReference first = editor(document, input);
+		IEditorReference second = editor(document, input);
+		int registered = SoftwareCoFileEditorListener.getDocumentListenerCount();
+
+		open(first);
+		open(second);
+		editorListener.partActivated(second);
+		editorListener.partVisible(first);
+		// one listener per document, however many editors show it
+		assertEquals(1, document.listeners.size());
+		assertEquals(registered + 1, SoftwareCoFileEditorListener.getDocumentListenerCount());
+		SoftwareCoDocumentListener listener = (SoftwareCoDocumentListener) document.listeners.get(0);
+		assertEquals(FILE_NAME, listener.getFileName());
+		assertSame(listener, editorListener.addDocumentListener(document, FILE_NAME));
+
+		// the other editor still shows the document
+		close(first);
+		assertEquals(1, document.listeners.size());
+
+		close(second);
+		assertEquals(0, document.listeners.size());
+		assertEquals(registered, SoftwareCoFileEditorListener.getDocumentListenerCount());
+	}
+
+	@Test
+	public void aNonTextEditorIsIgnored() {
+		final IEditorInput input = new FileEditorInput(file(FILE_NAME));
+		IEditorReference ref = reference(proxy(IEditorPart.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getEditorInput")) {
+					return input;
+				}
+				return identity(proxy, method, args);
+			}
+		}));
+		int registered = SoftwareCoFileEditorListener.getDocumentListenerCount();
+
+		open(ref);
+		close(ref);
+		assertEquals(registered, SoftwareCoFileEditorListener.getDocumentListenerCount());
+	}
+
+	@Test
+	public void theRegistryDoesNotKeepClosedDocumentsAlive() throws Exception {
+		int registered = SoftwareCoFileEditorListener.getDocumentListenerCount();
+		List<IDocument> editing = new ArrayList<IDocument>();
+		List<WeakReference<IDocument>> documents = new ArrayList<WeakReference<IDocument>>();
+		for (int i = 0; i < 100; i++) {
+			// about 1MB each, enough to show up if they were retained
+			char[] text = new char[512 * 1024];
+			Arrays.fill(text, 'x');
+			IDocument document = new Document(new String(text));
+			// attached and never closed, as when the close event is missed
+			editorListener.addDocumentListener(document, "/tmp/software-editor-test/Missed" + i + ".java");
+			editing.add(document);
+			documents.add(new WeakReference<IDocument>(document));
+		}
+		assertEquals(registered + 100, SoftwareCoFileEditorListener.getDocumentListenerCount());
+		// the editors let go of the documents
+		editing.clear();
+
+		long deadline = System.currentTimeMillis() + GC_WAIT_MILLIS;
+		while (collectedCount(documents) < documents.size() && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertEquals(documents.size(), collectedCount(documents));
+		// the weak map drops the stale entries on its next access
+		assertTrue(SoftwareCoFileEditorListener.getDocumentListenerCount() <= registered);
+		assertNull(documents.get(0).get());
+	}
+
+	private void open(IEditorReference ref) {
+		openEditors.add(ref);
+		editorListener.partOpened(ref);
+	}
+
+	private void close(IEditorReference ref) {
+		// the workbench removes the editor from the page before it reports the close
+		openEditors.remove(ref);
+		editorListener.partClosed(ref);
+	}
+
+	private static int collectedCount(List<WeakReference<IDocument>> documents) {
+		int collected = 0;
+		for (WeakReference<IDocument> document : documents) {
+			if (document.get() == null) {
+				collected++;
+			}
+		}
+		return collected;
+	}
+
+	/**
+	 * Document that exposes its listeners
+	 */
+	private static class CountingDocument extends Document {
+		private final List<IDocumentListener> listeners = new ArrayList<IDocumentListener>();
+
+		CountingDocument(String text) {
+			super(text);
+		}
+
+		@Override
+		public void addDocumentListener(IDocumentListener listener) {
+			super.addDocumentListener(listener);
+			listeners.add(listener);
+		}
+
+		@Override
+		public void removeDocumentListener(IDocumentListener listener) {
+			super.removeDocumentListener(listener);
+			listeners.remove(listener);
+		}
+	}
+
+	private IEditorReference editor(final IDocument document, final IEditorInput input) {
+		final IDocumentProvider provider = proxy(IDocumentProvider.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getDocument")) {
+					return (args[0] == input) ? document : null;
+				}
+				return identity(proxy, method, args);
+			}
+		});
+		ITextEditor editor = proxy(ITextEditor.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getEditorInput")) {
+					return input;
+				} else if (method.getName().equals("getDocumentProvider")) {
+					return provider;
+				}
+				return identity(proxy, method, args);
+			}
+		});
+		return reference(editor);
+	}
+
+	private IEditorReference reference(final IEditorPart editor) {
+		return proxy(IEditorReference.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String methodName = method.getName();
+				if (methodName.equals("getPart") || methodName.equals("getEditor")) {
+					return editor;
+				} else if (methodName.equals("getPage")) {
+					return page;
+				} else if (methodName.equals("getEditorInput")) {
+					return editor.getEditorInput();
+				}
+				return identity(proxy, method, args);
+			}
+		});
+	}
+
+	private static IFile file(final String fileName) {
+		return proxy(IFile.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getLocationURI")) {
+					return new File(fileName).toURI();
+				} else if (method.getName().equals("getName")) {
+					return new File(fileName).getName();
+				}
+				return identity(proxy, method, args);
+			}
+		});
+	}
+
+	/**
+	 * equals and hashCode by identity, anything else the test doesn't expect
+	 */
+	private static Object identity(Object proxy, Method method, Object[] args) {
+		if (method.getName().equals("equals")) {
+			return proxy == args[0];
+		} else if (method.getName().equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if (method.getName().equals("toString")) {
+			return method.getDeclaringClass().getSimpleName();
+		}
+		throw new UnsupportedOperationException(method.getName());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.DocumentEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that recording a document change allocates nothing in the steady
+ * state, counted with the JVM's per thread allocation counter.
+ */
+public class SoftwareCoIngestionAllocationTest {
+
+	private static final int WARMUP_EVENTS = 50000;
+	private static final int MEASURED_EVENTS = 100000;
+	// slack for the counter itself, well under one byte per event
+	private static final long MAX_ALLOCATED_BYTES = 4096;
+
+	private static final String FILE_NAME = "/tmp/software-allocation-test/Allocation.java";
+
+	private final SoftwareCoEventAggregator aggregator = SoftwareCoEventAggregator.getInstance();
+
+	@Before
+	public void setUp() {
+		assumeTrue("per thread allocation counting isn't supported", isAllocationCountingSupported());
+	}
+
+	@After
+	public void tearDown() {
+		aggregator.stop();
+		SoftwareCoKeystrokeManager.getInstance().processKeystrokeCountForTermination();
+	}
+
+	@Test
+	public void changeEventsDoNotAllocateOnThePublishingThread() {
+		// this thread plays the UI thread, the aggregator drains on its own thread
+		aggregator.start(Thread.currentThread());
+
+		Document document = new Document("class Allocation {\n}\n");
+		SoftwareCoDocumentListener binding = new SoftwareCoDocumentListener(FILE_NAME);
+		DocumentEvent typed = new DocumentEvent(document, 18, 0, "a");
+		DocumentEvent deleted = new DocumentEvent(document, 18, 1, "");
+		DocumentEvent newLine = new DocumentEvent(document, 18, 0, "\n");
+		DocumentEvent pasted = new DocumentEvent(document, 18, 0, "pasted text");
+
+		publish(binding, WARMUP_EVENTS, typed, deleted, newLine, pasted);
+		long before = allocatedBytes();
+		publish(binding, MEASURED_EVENTS, typed, deleted, newLine, pasted);
+		long allocated = allocatedBytes() - before;
+
+		assertTrue("allocated " + allocated + " bytes for " + MEASURED_EVENTS + " events",
+				allocated < MAX_ALLOCATED_BYTES);
+	}
+
+	@Test
+	public void recordingIntoTheLivePayloadDoesNotAllocate() {
+		SoftwareCoKeystrokeCount keystrokeCount = new SoftwareCoKeystrokeCount();
+		keystrokeCount.updateProject("allocation", "/tmp/software-allocation-test");
+
+		record(keystrokeCount, WARMUP_EVENTS);
+		long before = allocatedBytes();
+		record(keystrokeCount, MEASURED_EVENTS);
+		long allocated = allocatedBytes() - before;
+
+		assertTrue("allocated " + allocated + " bytes for " + MEASURED_EVENTS + " changes",
+				allocated < MAX_ALLOCATED_BYTES);
+		assertEquals(String.valueOf(WARMUP_EVENTS + MEASURED_EVENTS), keystrokeCount.getData());
+	}
+
+	private static void publish(SoftwareCoDocumentListener binding, int count, DocumentEvent... events) {
+		for (int i = 0; i < count; i++) {
+			SoftwareCo.handleChangeEvents(binding, events[i % events.length], 0);
+		}
+	}
+
+	private static void record(SoftwareCoKeystrokeCount keystrokeCount, int count) {
+		for (int i = 0; i < count; i++) {
+			keystrokeCount.recordChange(FILE_NAME, 1, 0, 0, 1, 0, 0, 100 + i, 10, null);
+		}
+	}
+
+	private static boolean isAllocationCountingSupported() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		return bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported();
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
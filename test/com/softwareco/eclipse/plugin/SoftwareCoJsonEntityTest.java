@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Posts json entities to a stand-in server and compares what arrived with
+ * the Gson serialization.
+ */
+public class SoftwareCoJsonEntityTest {
+
+	private static final String FILE_NAME = "/tmp/software-entity-test/Typed.java";
+
+	private SoftwareCoStandInServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new SoftwareCoStandInServer();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void thePayloadIsStreamedChunkedAsItsGsonJson() throws Exception {
+		SoftwareCoKeystrokeCount keystrokeCount = SoftwareCoTestSupport.payload(FILE_NAME, 3);
+		SoftwareCoJsonEntity entity = new SoftwareCoJsonEntity(source(keystrokeCount), false);
+
+		SoftwareCoStandInServer.Request request = post("/data", entity);
+		assertEquals("chunked", request.transferEncoding);
+		assertNull(request.contentEncoding);
+		assertEquals(SoftwareCo.gson.toJson(keystrokeCount), new String(request.body, "UTF-8"));
+	}
+
+	@Test
+	public void forObjectSerializesWithThePluginsGson() throws Exception {
+		List<SoftwareCoKeystrokeCount> batch = new ArrayList<SoftwareCoKeystrokeCount>();
+		for (int i = 0; i < 3; i++) {
+			batch.add(SoftwareCoTestSupport.payload(FILE_NAME, i));
+		}
+		SoftwareCoStandInServer.Request request = post("/data/batch", SoftwareCoJsonEntity.forObject(batch));
+		assertEquals(SoftwareCo.gson.toJson(batch), request.getText());
+	}
+
+	@Test
+	public void aGzipBodyDecodesToTheSameJsonAndIsSmallerOnTheWire() throws Exception {
+		final List<SoftwareCoKeystrokeCount> batch = new ArrayList<SoftwareCoKeystrokeCount>();
+		for (int i = 0; i < 500; i++) {
+			batch.add(SoftwareCoTestSupport.payload(FILE_NAME, i));
+		}
+		SoftwareCoJsonEntity entity = new SoftwareCoJsonEntity(source(batch), true);
+		assertTrue(entity.isGzip());
+
+		SoftwareCoStandInServer.Request request = post("/data/batch", entity);
+		assertEquals("gzip", request.contentEncoding);
+		assertEquals("chunked", request.transferEncoding);
+		// gzip magic number
+		assertEquals((byte) 0x1f, request.body[0]);
+		assertEquals((byte) 0x8b, request.body[1]);
+		String json = request.getText();
+		assertEquals(SoftwareCo.gson.toJson(batch), json);
+		assertTrue(request.body.length + " bytes sent for " + json.length(), request.body.length * 5 < json.length());
+	}
+
+	@Test
+	public void theEntityWritesTheSameJsonEachTime() throws Exception {
+		SoftwareCoKeystrokeCount keystrokeCount = SoftwareCoTestSupport.payload(FILE_NAME, 1);
+		SoftwareCoJsonEntity entity = SoftwareCoJsonEntity.forObject(keystrokeCount);
+		assertTrue(entity.isRepeatable());
+		assertFalse(entity.isStreaming());
+		assertEquals(-1, entity.getContentLength());
+
+		String json = SoftwareCo.gson.toJson(keystrokeCount);
+		assertEquals(json, post("/data", entity).getText());
+		assertEquals(json, post("/data", entity).getText());
+		assertEquals(json, EntityUtils.toString(entity, "UTF-8"));
+	}
+
+	private SoftwareCoStandInServer.Request post(String api, SoftwareCoJsonEntity entity) throws Exception {
+		int before = server.getRequests().size();
+		HttpPost post = new HttpPost(server.getEndpoint() + api);
+		post.setEntity(entity);
+		HttpResponse response = SoftwareCoUtils.httpClient.execute(post);
+		try {
+			assertEquals(200, response.getStatusLine().getStatusCode());
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
+		}
+		List<SoftwareCoStandInServer.Request> requests = server.getRequests();
+		assertEquals(before + 1, requests.size());
+		return requests.get(before);
+	}
+
+	private static SoftwareCoJsonEntity.JsonSource source(final Object obj) {
+		return new SoftwareCoJsonEntity.JsonSource() {
+			public void write(JsonWriter writer) throws IOException {
+				SoftwareCo.gson.toJson(obj, obj.getClass(), writer);
+			}
+		};
+	}
+}
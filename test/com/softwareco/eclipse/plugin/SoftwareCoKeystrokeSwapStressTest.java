@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Records keystrokes from several threads while another thread keeps swapping
+ * the live payloads out, then checks every keystroke ended up in exactly one
+ * swapped payload.
+ */
+public class SoftwareCoKeystrokeSwapStressTest {
+
+	private static final int PRODUCERS = 4;
+	private static final int CHANGES_PER_PRODUCER = 200000;
+	private static final String[] PROJECTS = { "stress-a", "stress-b" };
+
+	private final SoftwareCoKeystrokeManager keystrokeMgr = new SoftwareCoKeystrokeManager();
+
+	@Test
+	public void noKeystrokeIsLostOrCountedTwiceAcrossSwaps() throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch producersDone = new CountDownLatch(PRODUCERS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicBoolean flushing = new AtomicBoolean(true);
+		final List<SoftwareCoKeystrokeCount> swapped = new ArrayList<SoftwareCoKeystrokeCount>();
+
+		for (int p = 0; p < PRODUCERS; p++) {
+			final String projectName = PROJECTS[p % PROJECTS.length];
+			final String fileName = "/tmp/" + projectName + "/Producer" + p + ".java";
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < CHANGES_PER_PRODUCER; i++) {
+							// every 10th change is a delete, the rest are typed characters
+							int adds = (i % 10 == 0) ? 0 : 1;
+							int deletes = 1 - adds;
+							SoftwareCoKeystrokeCount keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
+							while (!keystrokeCount.recordChange(fileName, adds, 0, deletes, 1, 0, 0, i, 1, null)) {
+								// sealed by the flusher, same retry the aggregator does
+								keystrokeCount = keystrokeMgr.getKeystrokeCount(projectName);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						producersDone.countDown();
+					}
+				}
+			}, "stress producer " + p).start();
+		}
+
+		Thread flusher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					start.await();
+					while (flushing.get()) {
+						swapAll(swapped);
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}
+		}, "stress flusher");
+		flusher.start();
+
+		start.countDown();
+		assertTrue("producers didn't finish", producersDone.await(2, TimeUnit.MINUTES));
+		flushing.set(false);
+		flusher.join(TimeUnit.MINUTES.toMillis(1));
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		// whatever is still live
+		swapAll(swapped);
+
+		long keystrokes = 0;
+		Map<String, Integer> adds = new HashMap<String, Integer>();
+		Map<String, Integer> deletes = new HashMap<String, Integer>();
+		for (SoftwareCoKeystrokeCount keystrokeCount : swapped) {
+			assertTrue(keystrokeCount.isSealed());
+			keystrokeCount.complete(keystrokeCount.getStart() + SoftwareCoFlushScheduler.WINDOW_SECONDS);
+			keystrokes += Long.parseLong(keystrokeCount.getData());
+			for (Map.Entry<String, SoftwareCoFileMetrics> entry : keystrokeCount.getFileMetrics().entrySet()) {
+				add(adds, entry.getKey(), entry.getValue().getAdd());
+				add(deletes, entry.getKey(), entry.getValue().getDelete());
+			}
+		}
+
+		assertTrue("the flusher never swapped a payload with data", swapped.size() > PROJECTS.length);
+		assertEquals((long) PRODUCERS * CHANGES_PER_PRODUCER, keystrokes);
+		assertEquals(PRODUCERS, adds.size());
+		int expectedDeletes = (CHANGES_PER_PRODUCER + 9) / 10;
+		for (String fileName : adds.keySet()) {
+			assertEquals(fileName, CHANGES_PER_PRODUCER - expectedDeletes, (int) adds.get(fileName));
+			assertEquals(fileName, expectedDeletes, (int) deletes.get(fileName));
+		}
+	}
+
+	private void swapAll(List<SoftwareCoKeystrokeCount> swapped) {
+		for (SoftwareCoKeystrokeManager.KeystrokeCountWrapper wrapper : keystrokeMgr.getKeystrokeCountWrapperList()) {
+			SoftwareCoKeystrokeCount keystrokeCount = wrapper.swapKeystrokeCount();
+			if (keystrokeCount.hasData()) {
+				swapped.add(keystrokeCount);
+			}
+		}
+	}
+
+	private static void add(Map<String, Integer> totals, String fileName, int count) {
+		Integer total = totals.get(fileName);
+		totals.put(fileName, (total == null ? 0 : total) + count);
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+/**
+ * Sends keystroke payloads to a stand-in server that stalls its responses.
+ * Plug-in tests run on the display thread, so the calls made here are the
+ * ones the workbench would make.
+ */
+public class SoftwareCoKeystrokeUploadTest {
+
+	private static final long WAIT_MILLIS = 5000;
+	// far below the http client's 10 second socket timeout the stall is measured against
+	private static final long MAX_CALL_MILLIS = 200;
+	private static final int PAYLOADS = 20;
+	private static final String FILE_NAME = "/tmp/software-upload-test/Upload.java";
+
+	private SoftwareCoStandInServer server;
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final SoftwareCoTestSupport.OfflineClientManager clientMgr = new SoftwareCoTestSupport.OfflineClientManager();
+	private final List<SoftwareCoKeystrokeCount> storedOffline = clientMgr.getStoredOffline();
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue("the api circuit breaker is open", SoftwareCoUtils.getApiCircuitBreaker().isCallPermitted());
+		server = new SoftwareCoStandInServer();
+		server.setResponder(new SoftwareCoStandInServer.Responder() {
+			public int respond(SoftwareCoStandInServer.Request request) throws Exception {
+				release.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				return 200;
+			}
+		});
+		System.setProperty("software.apiEndpoint", server.getEndpoint());
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		clientMgr.shutdown(System.currentTimeMillis() + WAIT_MILLIS);
+		System.clearProperty("software.apiEndpoint");
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void sendingNeverWaitsForAStalledUpload() throws Exception {
+		clientMgr.sendKeystrokeData(SoftwareCoTestSupport.payload(FILE_NAME, 0));
+		// the uploader is now stuck waiting on the response
+		assertTrue(server.awaitRequests(1, WAIT_MILLIS));
+
+		long slowest = 0;
+		for (int i = 1; i < PAYLOADS; i++) {
+			long started = System.nanoTime();
+			clientMgr.sendKeystrokeData(SoftwareCoTestSupport.payload(FILE_NAME, i));
+			slowest = Math.max(slowest, System.nanoTime() - started);
+		}
+		assertTrue("a send took " + TimeUnit.NANOSECONDS.toMillis(slowest) + "ms",
+				slowest < TimeUnit.MILLISECONDS.toNanos(MAX_CALL_MILLIS));
+		assertEquals(1, server.getRequests().size());
+
+		release.countDown();
+		// the payloads that queued up behind the stalled upload go out in one batch
+		assertTrue(server.awaitRequests(2, WAIT_MILLIS));
+		List<SoftwareCoStandInServer.Request> requests = server.getRequests();
+		assertEquals("/data", requests.get(0).path);
+		assertEquals("/data/batch", requests.get(1).path);
+		JsonArray batch = new JsonParser().parse(requests.get(1).getText()).getAsJsonArray();
+		assertEquals(PAYLOADS - 1, batch.size());
+		assertEquals(PAYLOADS - 2, clientMgr.getCoalescedUploadCount());
+		assertTrue(storedOffline.isEmpty());
+	}
+
+	@Test
+	public void shutdownStoresQueuedUploadsOfflineWithoutWaitingForTheServer() throws Exception {
+		clientMgr.sendKeystrokeData(SoftwareCoTestSupport.payload(FILE_NAME, 0));
+		assertTrue(server.awaitRequests(1, WAIT_MILLIS));
+		clientMgr.sendKeystrokeData(SoftwareCoTestSupport.payload(FILE_NAME, 1));
+
+		long started = System.currentTimeMillis();
+		// the running upload gets a short deadline, the queued one isn't sent at all
+		clientMgr.shutdown(System.currentTimeMillis() + 100);
+		assertTrue(System.currentTimeMillis() - started < WAIT_MILLIS);
+		assertEquals(1, storedOffline.size());
+		assertEquals("1", storedOffline.get(0).getData());
+	}
+
+	@Test
+	public void onlyABatchTheApiDoesntTakeIsSentAgainOneAtATime() throws Exception {
+		final AtomicInteger batchStatus = new AtomicInteger(500);
+		server.setResponder(new SoftwareCoStandInServer.Responder() {
+			public int respond(SoftwareCoStandInServer.Request request) {
+				return "/data/batch".equals(request.path) ? batchStatus.get() : 200;
+			}
+		});
+		List<SoftwareCoKeystrokeCount> batch = Arrays.asList(SoftwareCoTestSupport.payload(FILE_NAME, 1), SoftwareCoTestSupport.payload(FILE_NAME, 2), SoftwareCoTestSupport.payload(FILE_NAME, 3));
+
+		// the api is failing, the payloads go offline without a request each
+		clientMgr.sendKeystrokeData(batch);
+		assertTrue(awaitStoredOffline(batch.size()));
+		assertEquals(1, server.getRequests().size());
+		assertEquals(batch, storedOffline);
+
+		// the api doesn't know the batch endpoint, each payload is sent on its own
+		storedOffline.clear();
+		batchStatus.set(404);
+		clientMgr.sendKeystrokeData(batch);
+		assertTrue(server.awaitRequests(2 + batch.size(), WAIT_MILLIS));
+		List<SoftwareCoStandInServer.Request> requests = server.getRequests();
+		assertEquals("/data/batch", requests.get(1).path);
+		for (int i = 0; i < batch.size(); i++) {
+			assertEquals("/data", requests.get(2 + i).path);
+			assertEquals(SoftwareCo.gson.toJson(batch.get(i)), requests.get(2 + i).getText());
+		}
+		assertTrue(storedOffline.isEmpty());
+	}
+
+	@Test
+	public void uploadsDontWaitForTheOfflineReplay() throws Exception {
+		release.countDown();
+		final CompletableFuture<Boolean> replay = new CompletableFuture<Boolean>();
+		final AtomicInteger replays = new AtomicInteger();
+		SoftwareCoTestSupport.OfflineClientManager replayingClientMgr = new SoftwareCoTestSupport.OfflineClientManager() {
+			@Override
+			protected CompletableFuture<Boolean> sendOfflineData() {
+				// a large journal that's still being sent
+				replays.incrementAndGet();
+				return replay;
+			}
+		};
+		try {
+			for (int i = 1; i <= 3; i++) {
+				replayingClientMgr.sendKeystrokeData(SoftwareCoTestSupport.payload(FILE_NAME, i));
+				assertTrue(server.awaitRequests(i, WAIT_MILLIS));
+			}
+			assertEquals(3, replays.get());
+			assertTrue(replayingClientMgr.getStoredOffline().isEmpty());
+		} finally {
+			replay.complete(true);
+			replayingClientMgr.shutdown(System.currentTimeMillis() + WAIT_MILLIS);
+		}
+	}
+
+	private boolean awaitStoredOffline(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (storedOffline.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		return storedOffline.size() >= count;
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Stops and starts the plugin's background parts in the order the plugin's
+ * stop and start do, and checks each of them works again afterwards. The
+ * offline data goes to a journal in a temporary directory.
+ */
+public class SoftwareCoLifecycleTest {
+
+	private static final long WAIT_MILLIS = 5000;
+	private static final String TRACK = "{\"artist\":\"AWOLNATION\",\"name\":\"Kill Your Heroes\",\"state\":\"playing\"}";
+	private static final String FILE_NAME = "/tmp/software-lifecycle-test/Restarted.java";
+	private static final String OTHER_FILE_NAME = "/tmp/software-lifecycle-test/Stopped.java";
+
+	private File softwareDir;
+	private SoftwareCoSessionManager sessionMgr;
+	private SoftwareCoStandInServer server;
+	private final SoftwareCoFakeTrackProvider provider = new SoftwareCoFakeTrackProvider(true, TRACK);
+	private final SoftwareCoTrackSampler sampler = new SoftwareCoTrackSampler();
+	private final SoftwareCoEventAggregator aggregator = new SoftwareCoEventAggregator();
+	private final SoftwareCoFlushScheduler flushScheduler = new SoftwareCoFlushScheduler();
+	private final SoftwareCoKeystrokeManager keystrokeMgr = SoftwareCoKeystrokeManager.getInstance();
+	private SoftwareCoTestSupport.OfflineClientManager clientMgr;
+	private List<SoftwareCoKeystrokeCount> storedOffline;
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue("the api circuit breaker is open", SoftwareCoUtils.getApiCircuitBreaker().isCallPermitted());
+		assertEquals("payloads left behind by another test", Collections.emptyList(),
+				keystrokeMgr.processKeystrokeCountForTermination());
+		softwareDir = Files.createTempDirectory("software-lifecycle-test").toFile();
+		sessionMgr = new SoftwareCoSessionManager(softwareDir);
+		clientMgr = new SoftwareCoTestSupport.OfflineClientManager(sessionMgr);
+		storedOffline = clientMgr.getStoredOffline();
+		sampler.setProvider(provider);
+		server = new SoftwareCoStandInServer();
+		System.setProperty("software.apiEndpoint", server.getEndpoint());
+	}
+
+	@After
+	public void tearDown() {
+		if (sessionMgr == null) {
+			return;
+		}
+		// drains what a test left in the keystroke manager into the journal
+		stop();
+		// the executors are shared with the other tests
+		SoftwareCoExecutors.start();
+		System.clearProperty("software.apiEndpoint");
+		if (server != null) {
+			server.stop();
+		}
+		SoftwareCoTestSupport.delete(softwareDir);
+	}
+
+	@Test
+	public void everythingRunsAgainAfterAStopAndStart() throws Exception {
+		start();
+		assertRunning(1);
+
+		for (int restart = 2; restart <= 3; restart++) {
+			stop();
+			assertStopped();
+			start();
+			assertRunning(restart);
+		}
+	}
+
+	@Test
+	public void editsMadeBeforeAStopAreSentOnceAfterTheStart() throws Exception {
+		start();
+		SoftwareCoDocumentListener typed = new SoftwareCoDocumentListener(FILE_NAME);
+		SoftwareCoDocumentListener deleted = new SoftwareCoDocumentListener(OTHER_FILE_NAME);
+		for (int i = 0; i < 3; i++) {
+			aggregator.publish(typed, 1, 0, 0, 1, 0, 0, 10 + i, 1);
+		}
+		aggregator.publish(typed, 1, 0, 0, 1, 1, 0, 13, 2);
+		aggregator.publish(deleted, 0, 0, 1, 1, 0, 1, 40, 3);
+
+		// the aggregator applies the ring and the drain stores what it made
+		stop();
+		assertEquals(1, storedOffline.size());
+		SoftwareCoKeystrokeCount stopped = storedOffline.get(0);
+		assertEquals("5", stopped.getData());
+		assertEquals(2, stopped.getFileMetrics().size());
+		SoftwareCoFileMetrics typedMetrics = stopped.getFileMetrics().get(FILE_NAME);
+		assertEquals(4, typedMetrics.getKeys());
+		assertEquals(4, typedMetrics.getAdd());
+		assertEquals(1, typedMetrics.getLinesAdded());
+		SoftwareCoFileMetrics deletedMetrics = stopped.getFileMetrics().get(OTHER_FILE_NAME);
+		assertEquals(1, deletedMetrics.getKeys());
+		assertEquals(1, deletedMetrics.getDelete());
+		assertEquals(1, deletedMetrics.getLinesRemoved());
+		assertTrue(keystrokeMgr.processKeystrokeCountForTermination().isEmpty());
+		assertEquals(0, server.getRequests().size());
+
+		// the first upload after the start sends the journal along
+		start();
+		clientMgr.sendKeystrokeData(SoftwareCoTestSupport.payload(FILE_NAME, 1));
+		assertTrue(server.awaitRequests(2, WAIT_MILLIS));
+		assertTrue(sessionMgr.sendOfflineData().get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		clientMgr.sendKeystrokeData(SoftwareCoTestSupport.payload(FILE_NAME, 1));
+		assertTrue(server.awaitRequests(3, WAIT_MILLIS));
+		assertTrue(sessionMgr.sendOfflineData().get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+		List<JsonElement> replayed = new ArrayList<JsonElement>();
+		for (SoftwareCoStandInServer.Request request : server.getRequests()) {
+			if ("/data/batch".equals(request.path)) {
+				for (JsonElement sent : new JsonParser().parse(request.getText()).getAsJsonArray()) {
+					replayed.add(sent);
+				}
+			} else {
+				assertEquals("/data", request.path);
+			}
+		}
+		assertEquals(Collections.singletonList(new JsonParser().parse(SoftwareCo.gson.toJson(stopped))), replayed);
+		assertEquals(1, storedOffline.size());
+	}
+
+	/**
+	 * What SoftwareCo.start and earlyStartup start
+	 */
+	private void start() {
+		SoftwareCoExecutors.start();
+		clientMgr.start();
+		aggregator.start(Thread.currentThread());
+		sampler.start();
+		flushScheduler.start();
+	}
+
+	/**
+	 * What SoftwareCo.stop stops, in the same order
+	 */
+	private void stop() {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		flushScheduler.stop();
+		sampler.stop();
+		aggregator.stop(deadline - System.currentTimeMillis());
+		clientMgr.storeKeystrokeDataOffline(keystrokeMgr.processKeystrokeCountForTermination());
+		clientMgr.shutdown(deadline);
+		sessionMgr.closeOfflineData();
+		SoftwareCoExecutors.shutdown(deadline);
+	}
+
+	private void assertStopped() {
+		assertTrue(SoftwareCoExecutors.getApiExecutor().isShutdown());
+		assertNull(SoftwareCoExecutors.schedule(new Runnable() {
+			public void run() {
+				//
+			}
+		}, 0, TimeUnit.MILLISECONDS));
+		assertFalse(sampler.isRunning());
+		assertNull(sampler.getCurrentTrack());
+		assertFalse(flushScheduler.isRunning());
+		flushScheduler.requestFlush(System.currentTimeMillis(), true);
+		assertEquals(0, flushScheduler.getScheduledFlushMillis());
+	}
+
+	private void assertRunning(int starts) throws Exception {
+		// the scheduler runs delayed work
+		final CountDownLatch scheduled = new CountDownLatch(1);
+		SoftwareCoExecutors.schedule(new Runnable() {
+			public void run() {
+				scheduled.countDown();
+			}
+		}, 10, TimeUnit.MILLISECONDS);
+		assertTrue(scheduled.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+		// the flush scheduler arms and runs a flush on it
+		assertTrue(flushScheduler.isRunning());
+		long flushes = flushScheduler.getFlushCount();
+		flushScheduler.requestFlush(System.currentTimeMillis(), true);
+		assertTrue(waitFor(new Condition() {
+			public boolean holds() {
+				return flushScheduler.getFlushCount() == flushes + 1;
+			}
+		}));
+
+		// the sampler samples the provider again
+		assertTrue(sampler.isRunning());
+		assertTrue(waitFor(new Condition() {
+			public boolean holds() {
+				return TRACK.equals(sampler.getCurrentTrack()) && provider.getSampleCount() >= starts;
+			}
+		}));
+
+		// document changes are aggregated in the background
+		aggregator.publish(new SoftwareCoDocumentListener(FILE_NAME), 1, 0, 0, 1, 0, 0, 10, 1);
+		assertTrue(waitFor(new Condition() {
+			public boolean holds() {
+				return !keystrokeMgr.getKeystrokeCountWrapperList().isEmpty()
+						&& "1".equals(keystrokeMgr.getKeystrokeCountWrapperList().get(0).getKeystrokeCount().getData());
+			}
+		}));
+		List<SoftwareCoKeystrokeCount> drained = keystrokeMgr.processKeystrokeCountForTermination();
+		assertEquals(1, drained.size());
+		assertEquals("1", drained.get(0).getData());
+
+		// and uploads go out through the api pool
+		clientMgr.sendKeystrokeData(SoftwareCoTestSupport.payload(FILE_NAME, 1));
+		assertTrue(server.awaitRequests(starts, WAIT_MILLIS));
+		assertTrue(storedOffline.isEmpty());
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	private static boolean waitFor(Condition condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			if (condition.holds()) {
+				return true;
+			}
+			Thread.sleep(5);
+		}
+		return false;
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.softwareco.eclipse.plugin.SoftwareCoOfflineJournal.FsyncPolicy;
+
+/**
+ * Two journals on the same directory stand in for two Eclipse instances
+ * sharing ~/.software/journal.
+ */
+public class SoftwareCoOfflineJournalTest {
+
+	private File dir;
+	private SoftwareCoOfflineJournal first;
+	private SoftwareCoOfflineJournal second;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("software-journal-test").toFile();
+		first = new SoftwareCoOfflineJournal(dir, 1024 * 1024, FsyncPolicy.NEVER);
+		second = new SoftwareCoOfflineJournal(dir, 1024 * 1024, FsyncPolicy.NEVER);
+	}
+
+	@After
+	public void tearDown() {
+		first.close();
+		second.close();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void aSegmentAnotherInstanceIsAppendingToIsNotSealed() throws Exception {
+		first.append(record("first 1"));
+		second.append(record("second 1"));
+
+		List<File> sealed = second.sealSegments();
+		assertEquals(1, sealed.size());
+		assertEquals(Collections.singletonList("second 1"), read(second, sealed));
+
+		// still open in the first instance, it keeps appending to it
+		first.append(record("first 2"));
+		sealed = first.sealSegments();
+		assertEquals(2, sealed.size());
+		List<String> records = new ArrayList<String>();
+		for (File segment : sealed) {
+			records.addAll(read(first, Collections.singletonList(segment)));
+		}
+		assertTrue(records.contains("first 1"));
+		assertTrue(records.contains("first 2"));
+		assertTrue(records.contains("second 1"));
+	}
+
+	@Test
+	public void theCursorStopsShortOfAnotherInstancesOpenSegment() throws Exception {
+		// the first instance's open segment sits between the second's sealed ones
+		second.append(record("second 1"));
+		second.close();
+		first.append(record("first 1"));
+		second.append(record("second 2"));
+
+		List<File> sealed = second.sealSegments();
+		assertEquals(Collections.singletonList("second 1"), read(second, sealed.subList(0, 1)));
+		assertEquals(Collections.singletonList("second 2"), read(second, sealed.subList(1, 2)));
+		second.commit(sealed);
+		for (File segment : sealed) {
+			assertFalse(segment.exists());
+		}
+
+		// the first instance's segment is below the newest commit but wasn't sent
+		sealed = first.sealSegments();
+		assertEquals(Collections.singletonList("first 1"), read(first, sealed));
+		first.commit(sealed);
+		assertTrue(first.sealSegments().isEmpty());
+		assertTrue(second.sealSegments().isEmpty());
+	}
+
+	@Test
+	public void newSegmentsNeverReuseASequence() throws Exception {
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			first.append(record("first " + i));
+			second.append(record("second " + i));
+			expected.add("first " + i);
+			expected.add("second " + i);
+			first.close();
+			second.close();
+			if (i == 5) {
+				first.commit(first.sealSegments());
+				expected.clear();
+			}
+		}
+		List<File> sealed = first.sealSegments();
+		assertEquals(expected, read(first, sealed));
+	}
+
+	@Test
+	public void oneInstanceReplaysAtATime() throws Exception {
+		assertTrue(first.tryLockReplay());
+		assertFalse(second.tryLockReplay());
+		// nor a second replay in the same instance
+		assertFalse(first.tryLockReplay());
+
+		first.unlockReplay();
+		assertTrue(second.tryLockReplay());
+		assertFalse(first.tryLockReplay());
+		second.unlockReplay();
+	}
+
+	private static byte[] record(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static List<String> read(SoftwareCoOfflineJournal journal, List<File> segments) throws IOException {
+		final List<String> records = new ArrayList<String>();
+		for (File segment : segments) {
+			journal.readSegment(segment, new SoftwareCoOfflineJournal.RecordVisitor() {
+				public void onRecord(byte[] record) {
+					records.add(new String(record, StandardCharsets.UTF_8));
+				}
+			});
+		}
+		return records;
+	}
+}
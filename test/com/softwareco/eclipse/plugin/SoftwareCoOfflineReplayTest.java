@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Replays a journal in a temporary directory to a stand-in server.
+ */
+public class SoftwareCoOfflineReplayTest {
+
+	private static final long WAIT_MILLIS = 30000;
+	// what the journal replays in more than two batches
+	private static final long SMALL_JOURNAL_BYTES = 5 * 1024 * 1024;
+	// a few batches by default, pass -Dsoftware.replayBenchmarkMegabytes=100 for a journal left offline for weeks
+	private static final long BENCHMARK_JOURNAL_BYTES =
+			Long.getLong("software.replayBenchmarkMegabytes", 8) * 1024 * 1024;
+	private static final String FILE_NAME = "/tmp/software-replay-test/src/com/example/Replayed";
+
+	private File softwareDir;
+	private File journalDir;
+	private SoftwareCoSessionManager sessionMgr;
+	private SoftwareCoStandInServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue("the api circuit breaker is open", SoftwareCoUtils.getApiCircuitBreaker().isCallPermitted());
+		softwareDir = Files.createTempDirectory("software-replay-test").toFile();
+		journalDir = new File(softwareDir, "journal");
+		sessionMgr = new SoftwareCoSessionManager(softwareDir);
+		server = new SoftwareCoStandInServer();
+		System.setProperty("software.apiEndpoint", server.getEndpoint());
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty("software.apiEndpoint");
+		if (server != null) {
+			server.stop();
+		}
+		if (sessionMgr != null) {
+			sessionMgr.closeOfflineData();
+			SoftwareCoTestSupport.delete(softwareDir);
+		}
+	}
+
+	@Test
+	public void aFailedBatchLeavesTheCursorAndIsSentAgain() throws Exception {
+		int payloads = storePayloads(SMALL_JOURNAL_BYTES);
+		final AtomicInteger batches = new AtomicInteger();
+		server.setResponder(new SoftwareCoStandInServer.Responder() {
+			public int respond(SoftwareCoStandInServer.Request request) {
+				// the second batch of the first replay fails
+				return (batches.incrementAndGet() == 2) ? 500 : 200;
+			}
+		});
+
+		assertFalse(sessionMgr.sendOfflineData().get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals(2, server.getRequests().size());
+		// only the first batch is committed
+		String cursor = readCursor();
+		int firstBatch = startTimes(server.getRequests().get(0)).size();
+		assertTrue(firstBatch > 0 && firstBatch < payloads);
+		assertFalse(segments().isEmpty());
+
+		assertTrue(sessionMgr.sendOfflineData().get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		List<SoftwareCoStandInServer.Request> requests = server.getRequests();
+		assertTrue(requests.size() > 3);
+		// the replay starts over with the batch that failed
+		assertEquals(requests.get(1).getText(), requests.get(2).getText());
+		assertTrue(Long.parseLong(readCursor()) > Long.parseLong(cursor));
+		assertTrue(segments().isEmpty());
+
+		// every payload made it once, leaving out the failed attempt
+		Set<Long> sent = new HashSet<Long>();
+		int sentCount = 0;
+		for (int i = 0; i < requests.size(); i++) {
+			if (i != 1) {
+				Set<Long> startTimes = startTimes(requests.get(i));
+				sent.addAll(startTimes);
+				sentCount += startTimes.size();
+			}
+		}
+		assertEquals(payloads, sentCount);
+		assertEquals(payloads, sent.size());
+	}
+
+	@Test
+	public void aJournalIsReplayedByOneInstanceAtATime() throws Exception {
+		int payloads = storePayloads(1);
+		sessionMgr.closeOfflineData();
+		final CountDownLatch release = new CountDownLatch(1);
+		server.setResponder(new SoftwareCoStandInServer.Responder() {
+			public int respond(SoftwareCoStandInServer.Request request) throws Exception {
+				release.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				return 200;
+			}
+		});
+		// another Eclipse instance on the same ~/.software
+		SoftwareCoSessionManager otherSessionMgr = new SoftwareCoSessionManager(softwareDir);
+
+		CompletableFuture<Boolean> replay = sessionMgr.sendOfflineData();
+		assertTrue(server.awaitRequests(1, WAIT_MILLIS));
+		assertFalse(otherSessionMgr.sendOfflineData().get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue(replay.get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		// the other instance gets its turn, there's nothing left to send
+		assertTrue(otherSessionMgr.sendOfflineData().get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals(1, server.getRequests().size());
+		assertEquals(payloads, startTimes(server.getRequests().get(0)).size());
+	}
+
+	@Test
+	public void replayingALargeJournal() throws Exception {
+		server.setKeepBodies(false);
+		long started = System.nanoTime();
+		int payloads = storePayloads(BENCHMARK_JOURNAL_BYTES);
+		long storeNanos = System.nanoTime() - started;
+		long journalBytes = segmentBytes();
+
+		started = System.nanoTime();
+		assertTrue(sessionMgr.sendOfflineData().get(10, TimeUnit.MINUTES));
+		long replayNanos = System.nanoTime() - started;
+
+		List<SoftwareCoStandInServer.Request> requests = server.getRequests();
+		long sentBytes = 0;
+		for (SoftwareCoStandInServer.Request request : requests) {
+			sentBytes += request.length;
+		}
+		String report = "Software.com: journal of " + (journalBytes / (1024 * 1024)) + "MB (" + payloads
+				+ " payloads) stored in " + TimeUnit.NANOSECONDS.toMillis(storeNanos) + "ms, replayed in "
+				+ TimeUnit.NANOSECONDS.toMillis(replayNanos) + "ms as " + requests.size() + " batches of "
+				+ (sentBytes / (1024 * 1024)) + "MB json";
+		SoftwareCoLogger.info(report);
+		assertTrue(report, segments().isEmpty());
+		// the batches are bounded, and the json is bigger than the compact records
+		assertTrue(report, requests.size() >= journalBytes / (2 * 1024 * 1024));
+		assertTrue(report, sentBytes > journalBytes);
+	}
+
+	/**
+	 * Store payloads until the journal is at least the given size, returns how many
+	 */
+	private int storePayloads(long journalBytes) {
+		long start = System.currentTimeMillis() / 1000;
+		int payloads = 0;
+		while (payloads % 1000 != 0 || segmentBytes() < journalBytes) {
+			SoftwareCoKeystrokeCount keystrokeCount = new SoftwareCoKeystrokeCount();
+			keystrokeCount.updateProject("replay", "/tmp/software-replay-test");
+			for (int file = 0; file < 5; file++) {
+				keystrokeCount.recordChange(FILE_NAME + file + ".java", 3, 0, 1, 4, 1, 0, 1200 + payloads, 40, null);
+			}
+			keystrokeCount.seal();
+			// tells the payloads apart
+			keystrokeCount.setStart(start + payloads);
+			keystrokeCount.complete(keystrokeCount.getStart() + SoftwareCoFlushScheduler.WINDOW_SECONDS);
+			sessionMgr.storeKeystrokeData(keystrokeCount);
+			payloads++;
+		}
+		return payloads;
+	}
+
+	private static Set<Long> startTimes(SoftwareCoStandInServer.Request request) throws Exception {
+		Set<Long> startTimes = new HashSet<Long>();
+		JsonArray batch = new JsonParser().parse(request.getText()).getAsJsonArray();
+		for (JsonElement payload : batch) {
+			startTimes.add(payload.getAsJsonObject().get("start").getAsLong());
+		}
+		assertEquals(batch.size(), startTimes.size());
+		return startTimes;
+	}
+
+	private String readCursor() throws Exception {
+		return new String(Files.readAllBytes(new File(journalDir, "cursor").toPath()), StandardCharsets.UTF_8).trim();
+	}
+
+	private Set<File> segments() {
+		Set<File> segments = new HashSet<File>();
+		File[] files = journalDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(".seg")) {
+					segments.add(file);
+				}
+			}
+		}
+		return segments;
+	}
+
+	private long segmentBytes() {
+		long bytes = 0;
+		for (File segment : segments()) {
+			bytes += segment.length();
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Encodes payloads the way the journal stores them and checks the decoded
+ * json is what Gson makes of the payload.
+ */
+public class SoftwareCoPayloadCodecTest {
+
+	private static final String TRACK = "{\"artist\":\"AWOLNATION\",\"name\":\"Kill Your Heroes\",\"state\":\"playing\"}";
+	private static final String[] PLAYLIST = { TRACK,
+			"{\"artist\":\"Daft Punk\",\"name\":\"Harder, Better, Faster, Stronger\",\"state\":\"playing\"}",
+			"{\"artist\":\"Tycho\",\"name\":\"Awake\",\"state\":\"playing\"}",
+			"{\"artist\":\"Bonobo\",\"name\":\"Kerala\",\"state\":\"playing\"}" };
+	private static final String[] PROJECTS = { "swdc-eclipse", "api-server", "dotfiles" };
+	private static final String[] EXTENSIONS = { ".java", ".java", ".java", ".xml", ".md", ".properties" };
+	// Monday 2018-11-05 09:00 UTC
+	private static final long WEEK_START = 1541408400L;
+
+	private final SoftwareCoPayloadCodec.Encoder encoder = new SoftwareCoPayloadCodec.Encoder();
+
+	@Test
+	public void aPayloadDecodesToItsGsonJson() throws Exception {
+		SoftwareCoKeystrokeCount keystrokeCount = new SoftwareCoKeystrokeCount();
+		keystrokeCount.updateProject("swdc-eclipse", "/ws/swdc-eclipse");
+		keystrokeCount.recordChange("/ws/swdc-eclipse/src/Main.java", 12, 1, 3, 16, 2, 1, 4200, 120, TRACK);
+		keystrokeCount.recordChange("/ws/swdc-eclipse/README.md", 0, 0, 40, 40, 0, 5, 300, -1, null);
+		keystrokeCount.getFileMetrics().get("/ws/swdc-eclipse/src/Main.java").setSyntax("java");
+		complete(keystrokeCount);
+
+		assertEquals(SoftwareCo.gson.toJson(keystrokeCount), roundTrip(keystrokeCount));
+	}
+
+	@Test
+	public void emptyStringsStayEmptyAndNullsStayOut() throws Exception {
+		// what the plugin sends for a file outside any project
+		SoftwareCoKeystrokeCount noProject = new SoftwareCoKeystrokeCount();
+		noProject.updateProject("None", "");
+		noProject.recordChange("/tmp/Scratch.java", 1, 0, 0, 1, 0, 0, 1, 1, null);
+		complete(noProject);
+		String json = roundTrip(noProject);
+		assertEquals(SoftwareCo.gson.toJson(noProject), json);
+		assertEquals("", new JsonParser().parse(json).getAsJsonObject().getAsJsonObject("project")
+				.get("directory").getAsString());
+
+		SoftwareCoKeystrokeCount nulls = new SoftwareCoKeystrokeCount();
+		nulls.updateProject(null, null);
+		nulls.recordChange("", 1, 0, 0, 1, 0, 0, 1, 1, null);
+		nulls.getFileMetrics().get("").setTrackInfo(null);
+		nulls.getFileMetrics().get("").setSyntax(null);
+		complete(nulls);
+		assertEquals(SoftwareCo.gson.toJson(nulls), roundTrip(nulls));
+
+		SoftwareCoKeystrokeCount none = new SoftwareCoKeystrokeCount();
+		none.recordChange("/tmp/Scratch.java", 1, 0, 0, 1, 0, 0, 1, 1, "");
+		complete(none);
+		assertEquals(SoftwareCo.gson.toJson(none), roundTrip(none));
+	}
+
+	@Test
+	public void charactersGsonEscapesDecodeToTheSameJson() throws Exception {
+		SoftwareCoKeystrokeCount keystrokeCount = new SoftwareCoKeystrokeCount();
+		keystrokeCount.updateProject("it's <mine> & \"yours\"", "C:\\ws\\a=b");
+		keystrokeCount.recordChange("C:\\ws\\a=b\\Ünïcødé \u2603.java", 1, 0, 0, 1, 0, 0, 1, 1, TRACK);
+		complete(keystrokeCount);
+
+		// gson escapes html characters, the json writer doesn't
+		JsonParser parser = new JsonParser();
+		assertEquals(parser.parse(SoftwareCo.gson.toJson(keystrokeCount)),
+				parser.parse(roundTrip(keystrokeCount)));
+	}
+
+	@Test
+	public void theDictionaryIsSharedByTheRecordsOfASegment() throws Exception {
+		List<SoftwareCoKeystrokeCount> payloads = new ArrayList<SoftwareCoKeystrokeCount>();
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (int i = 0; i < 3; i++) {
+			SoftwareCoKeystrokeCount keystrokeCount = new SoftwareCoKeystrokeCount();
+			keystrokeCount.updateProject("swdc-eclipse", "/ws/swdc-eclipse");
+			keystrokeCount.recordChange("/ws/swdc-eclipse/src/Main.java", i + 1, 0, 0, i + 1, 0, 0, 100 + i, 10, TRACK);
+			complete(keystrokeCount);
+			List<byte[]> encoded = encoder.encode(keystrokeCount);
+			// the strings are only written with the first payload
+			assertEquals((i == 0) ? 6 : 1, encoded.size());
+			payloads.add(keystrokeCount);
+			records.addAll(encoded);
+		}
+		assertEquals(SoftwareCo.gson.toJson(payloads), decode(records));
+
+		// a new segment writes them again, the old entries are of no use to its decoder
+		encoder.reset();
+		List<byte[]> encoded = encoder.encode(payloads.get(0));
+		assertEquals(6, encoded.size());
+		try {
+			decode(encoded.subList(encoded.size() - 1, encoded.size()));
+			fail("the dictionary entries are missing");
+		} catch (SoftwareCoPayloadCodec.CorruptRecordException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void aSimulatedWeekIsJournaledInLessSpaceThanItsJsonLines() throws Exception {
+		List<SoftwareCoKeystrokeCount> week = simulateWeek(new Random(5));
+		File dir = Files.createTempDirectory("software-codec-test").toFile();
+		SoftwareCoOfflineJournal compact = new SoftwareCoOfflineJournal(new File(dir, "compact"), 1024 * 1024,
+				SoftwareCoOfflineJournal.FsyncPolicy.NEVER);
+		// what an imported data.json is journaled as
+		SoftwareCoOfflineJournal passThrough = new SoftwareCoOfflineJournal(new File(dir, "json"), 1024 * 1024,
+				SoftwareCoOfflineJournal.FsyncPolicy.NEVER);
+		try {
+			long jsonLinesBytes = 0;
+			for (SoftwareCoKeystrokeCount keystrokeCount : week) {
+				compact.append(keystrokeCount);
+				String line = SoftwareCo.gson.toJson(keystrokeCount);
+				jsonLinesBytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+				passThrough.append(SoftwareCoPayloadCodec.encodeJson(line));
+			}
+			List<File> compactSegments = compact.sealSegments();
+			List<File> jsonSegments = passThrough.sealSegments();
+			long journalBytes = 0;
+			for (File segment : compactSegments) {
+				journalBytes += segment.length();
+			}
+
+			StringWriter transcoded = new StringWriter();
+			long transcodeNanos = replay(compact, compactSegments, transcoded);
+			StringWriter passedThrough = new StringWriter();
+			long passThroughNanos = replay(passThrough, jsonSegments, passedThrough);
+			JsonParser parser = new JsonParser();
+			assertEquals(parser.parse(passedThrough.toString()), parser.parse(transcoded.toString()));
+			assertEquals(week.size(), parser.parse(transcoded.toString()).getAsJsonArray().size());
+
+			String report = "Software.com: a week of " + week.size() + " payloads is " + journalBytes
+					+ " journal bytes for " + jsonLinesBytes + " bytes of json lines, transcoded in "
+					+ TimeUnit.NANOSECONDS.toMillis(transcodeNanos) + "ms, json passed through in "
+					+ TimeUnit.NANOSECONDS.toMillis(passThroughNanos) + "ms";
+			SoftwareCoLogger.info(report);
+			assertTrue(report, journalBytes < jsonLinesBytes);
+		} finally {
+			compact.close();
+			passThrough.close();
+			SoftwareCoTestSupport.delete(dir);
+		}
+	}
+
+	/**
+	 * One minute payloads for five eight hour days with idle minutes, an hour
+	 * or so on a project at a time, and music playing some of the time
+	 */
+	private static List<SoftwareCoKeystrokeCount> simulateWeek(Random random) {
+		List<SoftwareCoKeystrokeCount> week = new ArrayList<SoftwareCoKeystrokeCount>();
+		String project = PROJECTS[0];
+		for (int day = 0; day < 5; day++) {
+			long dayStart = WEEK_START + day * 24 * 60 * 60;
+			for (int minute = 0; minute < 8 * 60; minute++) {
+				if (random.nextInt(60) == 0) {
+					project = PROJECTS[random.nextInt(PROJECTS.length)];
+				}
+				if (random.nextInt(10) < 3) {
+					// in a meeting, reading, or away
+					continue;
+				}
+				String directory = "/Users/dev/workspace/" + project;
+				String track = ((minute / 90 + day) % 3 == 0) ? null : PLAYLIST[(minute / 4) % PLAYLIST.length];
+				SoftwareCoKeystrokeCount keystrokeCount = new SoftwareCoKeystrokeCount();
+				keystrokeCount.updateProject(project, directory);
+				int files = 1 + random.nextInt(3);
+				for (int i = 0; i < files; i++) {
+					int file = random.nextInt(25);
+					String fileName = directory + "/src/main/java/com/example/" + project.replace("-", "")
+							+ "/Source" + file + EXTENSIONS[file % EXTENSIONS.length];
+					if (random.nextInt(8) == 0) {
+						keystrokeCount.recordOpen(fileName);
+					}
+					int adds = random.nextInt(150);
+					int deletes = random.nextInt(1 + adds / 3);
+					int pastes = (random.nextInt(12) == 0) ? 20 + random.nextInt(400) : 0;
+					int length = 2000 + file * 731 + adds;
+					keystrokeCount.recordChange(fileName, adds, pastes, deletes, adds + deletes + (pastes > 0 ? 1 : 0),
+							(adds + pastes) / 30, deletes / 40, length, length / 34, track);
+					if (random.nextInt(20) == 0) {
+						keystrokeCount.recordClose(fileName);
+					}
+				}
+				keystrokeCount.seal();
+				keystrokeCount.setStart(dayStart + minute * 60);
+				complete(keystrokeCount);
+				week.add(keystrokeCount);
+			}
+		}
+		return week;
+	}
+
+	/**
+	 * Write the segments' records as one json array the way a replay does, returns the nanos it took
+	 */
+	private static long replay(SoftwareCoOfflineJournal journal, List<File> segments, StringWriter out)
+			throws IOException {
+		long started = System.nanoTime();
+		final JsonWriter writer = new JsonWriter(out);
+		writer.beginArray();
+		for (File segment : segments) {
+			final SoftwareCoPayloadCodec.Decoder decoder = new SoftwareCoPayloadCodec.Decoder();
+			journal.readSegment(segment, new SoftwareCoOfflineJournal.RecordVisitor() {
+				public void onRecord(byte[] record) throws IOException {
+					decoder.transcode(record, writer);
+				}
+			});
+		}
+		writer.endArray();
+		writer.flush();
+		return System.nanoTime() - started;
+	}
+
+	/**
+	 * The payload's json after encoding it into a segment of its own
+	 */
+	private static String roundTrip(SoftwareCoKeystrokeCount keystrokeCount) throws IOException {
+		return decode(new SoftwareCoPayloadCodec.Encoder().encode(keystrokeCount));
+	}
+
+	private static void complete(SoftwareCoKeystrokeCount keystrokeCount) {
+		keystrokeCount.seal();
+		keystrokeCount.complete(keystrokeCount.getStart() + SoftwareCoFlushScheduler.WINDOW_SECONDS);
+	}
+
+	/**
+	 * The json of the records, an array if there's more than one payload
+	 */
+	private static String decode(List<byte[]> records) throws IOException {
+		SoftwareCoPayloadCodec.Decoder decoder = new SoftwareCoPayloadCodec.Decoder();
+		int payloads = 0;
+		for (byte[] record : records) {
+			if (record[0] == SoftwareCoPayloadCodec.TYPE_KEYSTROKES) {
+				payloads++;
+			}
+		}
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out);
+		if (payloads > 1) {
+			writer.beginArray();
+		}
+		for (byte[] record : records) {
+			decoder.transcode(record, writer);
+		}
+		if (payloads > 1) {
+			writer.endArray();
+		}
+		writer.flush();
+		return out.toString();
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.runtime.IPath;
+import org.junit.Test;
+
+/**
+ * Resolves files against fake projects, the workspace isn't involved except
+ * for the rebuild a resource change triggers.
+ */
+public class SoftwareCoProjectResolverTest {
+
+	private static final int BENCHMARK_PROJECTS = 500;
+	private static final int BENCHMARK_LOOKUPS = 200000;
+
+	private final SoftwareCoProjectResolver resolver = new SoftwareCoProjectResolver();
+
+	@Test
+	public void nestedProjectsResolveToTheInnermostOne() {
+		IProject outer = project("outer", "/ws/outer", true);
+		IProject inner = project("inner", "/ws/outer/modules/inner", true);
+		IProject closed = project("closed", "/ws/outer/closed", false);
+		IProject other = project("other", "/ws/other", true);
+		resolver.rebuild(new IProject[] { inner, outer, closed, other });
+
+		assertSame(outer, resolver.resolve("/ws/outer/src/Main.java"));
+		assertSame(outer, resolver.resolve("/ws/outer/modules/Readme.md"));
+		assertSame(inner, resolver.resolve("/ws/outer/modules/inner/src/Inner.java"));
+		assertSame(other, resolver.resolve("/ws/other/Other.java"));
+		// closed projects aren't indexed, the enclosing one wins
+		assertSame(outer, resolver.resolve("/ws/outer/closed/Closed.java"));
+		// a shared name prefix isn't a path prefix
+		assertNull(resolver.resolve("/ws/outer-copy/Main.java"));
+		assertNull(resolver.resolve("/tmp/Scratch.java"));
+		assertNull(resolver.resolve(null));
+	}
+
+	@Test
+	public void windowsPathsMatchWhateverTheDriveLetterCaseAndSeparator() {
+		IProject project = project("win", "C:/ws/win", true);
+		resolver.rebuild(new IProject[] { project });
+
+		assertSame(project, resolver.resolve("c:/ws/win/src/Main.java"));
+		assertSame(project, resolver.resolve("C:\\ws\\win\\src\\Main.java"));
+		assertNull(resolver.resolve("D:/ws/win/src/Main.java"));
+	}
+
+	@Test
+	public void generationIsBumpedWhenAProjectIsAddedOrRemoved() {
+		IProject project = project("added", "/ws/added", true);
+		resolver.rebuild(new IProject[0]);
+		int generation = resolver.getGeneration();
+		assertNull(resolver.resolve("/ws/added/Main.java"));
+
+		resolver.resourceChanged(event(delta(IResourceDelta.ADDED, 0, IResource.PROJECT)));
+		assertEquals(generation + 1, resolver.getGeneration());
+		resolver.resourceChanged(event(delta(IResourceDelta.REMOVED, 0, IResource.PROJECT)));
+		assertEquals(generation + 2, resolver.getGeneration());
+		resolver.resourceChanged(event(delta(IResourceDelta.CHANGED, IResourceDelta.OPEN, IResource.PROJECT)));
+		assertEquals(generation + 3, resolver.getGeneration());
+
+		// file edits and plain project changes leave the index alone
+		resolver.resourceChanged(event(delta(IResourceDelta.CHANGED, 0, IResource.PROJECT)));
+		resolver.resourceChanged(event(delta(IResourceDelta.ADDED, 0, IResource.FILE)));
+		assertEquals(generation + 3, resolver.getGeneration());
+
+		resolver.rebuild(new IProject[] { project });
+		assertEquals(generation + 4, resolver.getGeneration());
+		assertSame(project, resolver.resolve("/ws/added/Main.java"));
+	}
+
+	@Test
+	public void lookupsAgreeWithScanningEveryProject() {
+		IProject[] projects = new IProject[BENCHMARK_PROJECTS];
+		for (int i = 0; i < projects.length; i++) {
+			projects[i] = project("project" + i, "/home/dev/workspace/project" + i, true);
+		}
+		resolver.rebuild(projects);
+		String[] locations = new String[projects.length];
+		for (int i = 0; i < projects.length; i++) {
+			locations[i] = projects[i].getLocation().toString();
+		}
+		String[] fileNames = new String[1000];
+		for (int i = 0; i < fileNames.length; i++) {
+			fileNames[i] = "/home/dev/workspace/project" + ((i * 7919) % BENCHMARK_PROJECTS)
+					+ "/src/com/example/pkg" + i + "/Source" + i + ".java";
+		}
+
+		// warm up both, and check they agree
+		for (String fileName : fileNames) {
+			assertSame(fileName, linearScan(projects, locations, fileName), resolver.resolve(fileName));
+		}
+
+		long started = System.nanoTime();
+		int found = 0;
+		for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+			if (resolver.resolve(fileNames[i % fileNames.length]) != null) {
+				found++;
+			}
+		}
+		long trieNanos = System.nanoTime() - started;
+
+		started = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+			if (linearScan(projects, locations, fileNames[i % fileNames.length]) != null) {
+				found++;
+			}
+		}
+		long scanNanos = System.nanoTime() - started;
+
+		// timed for the log, a busy build machine makes a comparison flaky
+		String report = "Software.com: " + BENCHMARK_LOOKUPS + " lookups over " + BENCHMARK_PROJECTS
+				+ " projects, index " + (trieNanos / 1000000) + "ms, scan " + (scanNanos / 1000000) + "ms";
+		SoftwareCoLogger.info(report);
+		assertEquals(report, 2 * BENCHMARK_LOOKUPS, found);
+	}
+
+	/**
+	 * What the plugin did before the index, every project's location checked in turn
+	 */
+	private static IProject linearScan(IProject[] projects, String[] locations, String fileName) {
+		for (int i = 0; i < projects.length; i++) {
+			if (fileName.startsWith(locations[i] + "/")) {
+				return projects[i];
+			}
+		}
+		return null;
+	}
+
+	private static IProject project(final String name, String location, final boolean open) {
+		final IPath path = path(location);
+		return proxy(IProject.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String methodName = method.getName();
+				if (methodName.equals("getName")) {
+					return name;
+				} else if (methodName.equals("getLocation")) {
+					return path;
+				} else if (methodName.equals("isOpen")) {
+					return open;
+				} else if (methodName.equals("getType")) {
+					return IResource.PROJECT;
+				} else if (methodName.equals("toString")) {
+					return name;
+				}
+				return identity(proxy, method, args);
+			}
+		});
+	}
+
+	private static IPath path(final String location) {
+		return proxy(IPath.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("toString") || method.getName().equals("toOSString")) {
+					return location;
+				}
+				return identity(proxy, method, args);
+			}
+		});
+	}
+
+	private static IResourceChangeEvent event(final IResourceDelta projectDelta) {
+		final IResourceDelta rootDelta = proxy(IResourceDelta.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getAffectedChildren")) {
+					return new IResourceDelta[] { projectDelta };
+				} else if (method.getName().equals("getKind")) {
+					return IResourceDelta.CHANGED;
+				}
+				return identity(proxy, method, args);
+			}
+		});
+		return proxy(IResourceChangeEvent.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getDelta")) {
+					return rootDelta;
+				} else if (method.getName().equals("getType")) {
+					return IResourceChangeEvent.POST_CHANGE;
+				}
+				return identity(proxy, method, args);
+			}
+		});
+	}
+
+	private static IResourceDelta delta(final int kind, final int flags, final int resourceType) {
+		final IResource resource = proxy(IResource.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getType")) {
+					return resourceType;
+				}
+				return identity(proxy, method, args);
+			}
+		});
+		return proxy(IResourceDelta.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String methodName = method.getName();
+				if (methodName.equals("getKind")) {
+					return kind;
+				} else if (methodName.equals("getFlags")) {
+					return flags;
+				} else if (methodName.equals("getResource")) {
+					return resource;
+				} else if (methodName.equals("getAffectedChildren")) {
+					return new IResourceDelta[0];
+				}
+				return identity(proxy, method, args);
+			}
+		});
+	}
+
+	/**
+	 * equals and hashCode by identity, anything else the test doesn't expect
+	 */
+	private static Object identity(Object proxy, Method method, Object[] args) {
+		if (method.getName().equals("equals")) {
+			return proxy == args[0];
+		} else if (method.getName().equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if (method.getName().equals("toString")) {
+			return method.getDeclaringClass().getSimpleName();
+		}
+		throw new UnsupportedOperationException(method.getName());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *
+ * Local http server standing in for the api. It records every request and
+ * answers with whatever the responder decides, 200 and an empty json object
+ * by default. Point the plugin at it with the "software.apiEndpoint" property.
+ *
+ */
+public class SoftwareCoStandInServer {
+
+	/**
+	 * Decides the response status for a request, it may block to stall the response
+	 */
+	public interface Responder {
+		int respond(Request request) throws Exception;
+	}
+
+	public static class Request {
+		public final String method;
+		public final String path;
+		public final String contentEncoding;
+		public final String transferEncoding;
+		// request body after the chunked transfer decoding, still gzipped if it was sent that way,
+		// empty if the server doesn't keep bodies
+		public final byte[] body;
+		// bytes of body received
+		public final long length;
+
+		Request(String method, String path, String contentEncoding, String transferEncoding, byte[] body,
+				long length) {
+			this.method = method;
+			this.path = path;
+			this.contentEncoding = contentEncoding;
+			this.transferEncoding = transferEncoding;
+			this.body = body;
+			this.length = length;
+		}
+
+		/**
+		 * The body as text, gunzipped if it was sent gzipped
+		 */
+		public String getText() throws IOException {
+			if ("gzip".equalsIgnoreCase(contentEncoding)) {
+				return new String(readAll(new GZIPInputStream(new ByteArrayInputStream(body))),
+						StandardCharsets.UTF_8);
+			}
+			return new String(body, StandardCharsets.UTF_8);
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final List<Request> requests = new ArrayList<Request>();
+	private volatile boolean keepBodies = true;
+	private volatile Responder responder = new Responder() {
+		public int respond(Request request) {
+			return 200;
+		}
+	};
+
+	public SoftwareCoStandInServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					byte[] body;
+					long length;
+					if (keepBodies) {
+						body = readAll(exchange.getRequestBody());
+						length = body.length;
+					} else {
+						body = new byte[0];
+						length = skipAll(exchange.getRequestBody());
+					}
+					Request request = new Request(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+							exchange.getRequestHeaders().getFirst("Content-Encoding"),
+							exchange.getRequestHeaders().getFirst("Transfer-Encoding"),
+							body, length);
+					synchronized (requests) {
+						requests.add(request);
+						requests.notifyAll();
+					}
+					int status;
+					try {
+						status = responder.respond(request);
+					} catch (Exception e) {
+						status = 500;
+					}
+					byte[] response = "{}".getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "application/json");
+					exchange.sendResponseHeaders(status, response.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(response);
+					out.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public String getEndpoint() {
+		return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort();
+	}
+
+	public void setResponder(Responder responder) {
+		this.responder = responder;
+	}
+
+	/**
+	 * Whether request bodies are recorded, turn it off for large uploads
+	 */
+	public void setKeepBodies(boolean keepBodies) {
+		this.keepBodies = keepBodies;
+	}
+
+	public List<Request> getRequests() {
+		synchronized (requests) {
+			return new ArrayList<Request>(requests);
+		}
+	}
+
+	/**
+	 * Wait until at least count requests came in, returns false on timeout
+	 */
+	public boolean awaitRequests(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (requests) {
+			while (requests.size() < count) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				requests.wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private static long skipAll(InputStream in) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		long length = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			length += n;
+		}
+		in.close();
+		return length;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+}
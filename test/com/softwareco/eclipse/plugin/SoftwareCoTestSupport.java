@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ *
+ * Fixtures shared by the tests: keystroke payloads, a client manager that
+ * keeps what it stores offline, and temporary directory cleanup.
+ *
+ */
+public class SoftwareCoTestSupport {
+
+	/**
+	 * Client manager that keeps the payloads it stores offline in a list. With
+	 * a session manager they're also stored in its journal and the offline data
+	 * is sent from there, without one the real offline journal is left alone.
+	 */
+	public static class OfflineClientManager extends SoftwareCoHttpClientManager {
+
+		private final List<SoftwareCoKeystrokeCount> storedOffline =
+				Collections.synchronizedList(new ArrayList<SoftwareCoKeystrokeCount>());
+		private final SoftwareCoSessionManager sessionMgr;
+
+		public OfflineClientManager() {
+			this(null);
+		}
+
+		public OfflineClientManager(SoftwareCoSessionManager sessionMgr) {
+			this.sessionMgr = sessionMgr;
+		}
+
+		@Override
+		protected void storeKeystrokeDataOffline(SoftwareCoKeystrokeCount keystrokeCount) {
+			storedOffline.add(keystrokeCount);
+			if (sessionMgr != null) {
+				sessionMgr.storeKeystrokeData(keystrokeCount);
+			}
+		}
+
+		@Override
+		protected CompletableFuture<Boolean> sendOfflineData() {
+			if (sessionMgr == null) {
+				return CompletableFuture.completedFuture(true);
+			}
+			return sessionMgr.sendOfflineData();
+		}
+
+		/**
+		 * The payloads stored offline so far, in the order they were stored
+		 */
+		public List<SoftwareCoKeystrokeCount> getStoredOffline() {
+			return storedOffline;
+		}
+	}
+
+	/**
+	 * Protected constructor to defeat instantiation
+	 */
+	protected SoftwareCoTestSupport() {
+		//
+	}
+
+	/**
+	 * A sealed and completed payload of single character keystrokes to the
+	 * file, in a project for the file's directory
+	 */
+	public static SoftwareCoKeystrokeCount payload(String fileName, int keystrokes) {
+		File file = new File(fileName);
+		SoftwareCoKeystrokeCount keystrokeCount = new SoftwareCoKeystrokeCount();
+		keystrokeCount.updateProject(file.getParentFile().getName(), file.getParent());
+		for (int i = 0; i < keystrokes; i++) {
+			keystrokeCount.recordChange(fileName, 1, 0, 0, 1, 0, 0, 100 + i, 1, null);
+		}
+		keystrokeCount.seal();
+		keystrokeCount.complete(keystrokeCount.getStart() + SoftwareCoFlushScheduler.WINDOW_SECONDS);
+		return keystrokeCount;
+	}
+
+	/**
+	 * Delete the file, or the directory and everything in it
+	 */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2018 by Software.com
+ * All rights reserved
+ */
+package com.softwareco.eclipse.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Drives the sampler with a fake provider, so it runs on any platform.
+ */
+public class SoftwareCoTrackSamplerTest {
+
+	private static final long WAIT_MILLIS = 5000;
+	private static final String TRACK = "{\"artist\":\"AWOLNATION\",\"name\":\"Kill Your Heroes\",\"state\":\"playing\"}";
+	private static final String NEXT_TRACK = "{\"artist\":\"Daft Punk\",\"name\":\"Around the World\",\"state\":\"playing\"}";
+
+	private final SoftwareCoTrackSampler sampler = new SoftwareCoTrackSampler();
+
+	@After
+	public void tearDown() {
+		sampler.stop();
+	}
+
+	@Test
+	public void startSamplesRightAwayAndCachesTheTrack() throws Exception {
+		SoftwareCoFakeTrackProvider provider = new SoftwareCoFakeTrackProvider(true, TRACK);
+		sampler.setProvider(provider);
+		assertNull(sampler.getCurrentTrack());
+
+		sampler.start();
+		assertTrue(sampler.isRunning());
+		assertTrue(waitForTrack(TRACK));
+
+		// reads come from the cache, the provider isn't asked again before the interval
+		int samples = provider.getSampleCount();
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(TRACK, sampler.getCurrentTrack());
+		}
+		assertEquals(samples, provider.getSampleCount());
+	}
+
+	@Test
+	public void theNextSamplePicksUpANewTrack() throws Exception {
+		SoftwareCoFakeTrackProvider provider = new SoftwareCoFakeTrackProvider(true, TRACK);
+		sampler.setProvider(provider);
+		sampler.setSampleSeconds(1);
+		sampler.start();
+		assertTrue(waitForTrack(TRACK));
+
+		provider.setTrack(NEXT_TRACK);
+		assertTrue(waitForTrack(NEXT_TRACK));
+	}
+
+	@Test
+	public void anUnavailableProviderNeverStarts() {
+		SoftwareCoFakeTrackProvider provider = new SoftwareCoFakeTrackProvider(false, TRACK);
+		sampler.setProvider(provider);
+		sampler.start();
+
+		assertFalse(sampler.isRunning());
+		assertNull(sampler.getCurrentTrack());
+		assertEquals(0, provider.getSampleCount());
+	}
+
+	@Test
+	public void aFailingProviderDisablesSampling() throws Exception {
+		SoftwareCoFakeTrackProvider provider = new SoftwareCoFakeTrackProvider(true, TRACK);
+		provider.setFailure(new IOException("Cannot run program \"osascript\""));
+		sampler.setProvider(provider);
+		sampler.start();
+
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (sampler.isRunning() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(sampler.isRunning());
+		assertNull(sampler.getCurrentTrack());
+		assertEquals(1, provider.getSampleCount());
+	}
+
+	@Test
+	public void replacingTheProviderRestartsAndStopClearsTheTrack() throws Exception {
+		sampler.setProvider(new SoftwareCoFakeTrackProvider(true, TRACK));
+		sampler.start();
+		assertTrue(waitForTrack(TRACK));
+
+		sampler.setProvider(new SoftwareCoFakeTrackProvider(true, NEXT_TRACK));
+		assertTrue(sampler.isRunning());
+		assertTrue(waitForTrack(NEXT_TRACK));
+
+		sampler.stop();
+		assertFalse(sampler.isRunning());
+		assertNull(sampler.getCurrentTrack());
+	}
+
+	private boolean waitForTrack(String track) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			if (track.equals(sampler.getCurrentTrack())) {
+				return true;
+			}
+			Thread.sleep(10);
+		}
+		return false;
+	}
+}